@@ -0,0 +1,367 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** This class shares the contents of the DNS cache with other resolver instances (peers). Every
+ * record added to the local cache from a DNS server, including the NS and address records of
+ * delegations, is sent to all peers in batches, and records received from peers are added to
+ * the local cache (but not sent on to other peers). A lookup that misses the local cache may
+ * also ask the peers for the records before querying upstream servers.
+ *
+ * Peers communicate over UDP with a compact binary protocol. Every message has a header with
+ * the protocol version, the kind of message, an ID and the number of entries that follow:
+ *
+ *     version (1) | kind (1) | id (2) | count (2)
+ *
+ * A QUERY message contains nodes, as an uncompressed wire-format name followed by the type
+ * code (2 bytes). It is answered with a RECORDS message with the same ID, containing the
+ * records cached for those nodes (possibly none). RECORDS messages sent in batches have ID 0.
+ * Each record contains the wire-format owner name, the type code (2), the remaining TTL in
+ * seconds (4), the RDATA length (2) and the RDATA, in which names are never compressed.
+ *
+ * Messages are only accepted from the configured peers, identified by address and port. Since
+ * nothing else authenticates them, records received from peers are only used to fill gaps in the
+ * local cache: they are ignored for queries that already have records in the cache (so they
+ * cannot replace a known delegation or its addresses), NS records for the root zone are never
+ * accepted, and TTLs are capped at MAX_PEER_TTL.
+ */
+public class CachePeers implements Closeable {
+
+    private static final int MAX_MESSAGE_SIZE = 1400;
+    private static final int HEADER_SIZE = 6;
+    private static final byte VERSION = 1;
+    private static final byte QUERY = 1;
+    private static final byte RECORDS = 2;
+    private static final long FLUSH_INTERVAL_MILLIS = 100;
+    private static final int MAX_PENDING_RECORDS = 10000;
+    /** Longest time, in seconds, that a record received from a peer is kept. */
+    private static final long MAX_PEER_TTL = 3600;
+
+    private final DNSCache cache;
+    private final DatagramSocket socket;
+    private final Set<InetSocketAddress> peers = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<Short, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+    private final AtomicInteger nextQueryID = new AtomicInteger();
+    private final Queue<ResourceRecord> outgoing = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger outgoingCount = new AtomicInteger();
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "peer-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong recordsSent = new AtomicLong();
+    private final AtomicLong recordsReceived = new AtomicLong();
+    private final AtomicLong recordsDropped = new AtomicLong();
+    private final AtomicLong recordsRejected = new AtomicLong();
+    private final AtomicLong queryHits = new AtomicLong();
+    private final AtomicLong queryMisses = new AtomicLong();
+
+    /** A query sent to the peers, completed with true when a peer returns records, or with
+     * false when every peer has answered without records. */
+    private static class PendingQuery {
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private final AtomicInteger remaining;
+
+        private PendingQuery(int peers) {
+            remaining = new AtomicInteger(peers);
+        }
+    }
+
+    /** Starts sharing a cache with peers. Peers must then be added with addPeer.
+     *
+     * @param cache The cache to be shared.
+     * @param port  Local UDP port on which peers send messages to this instance.
+     * @throws SocketException if the port cannot be used.
+     */
+    public CachePeers(DNSCache cache, int port) throws SocketException {
+        this.cache = cache;
+        this.socket = new DatagramSocket(port);
+
+        Thread receiver = new Thread(this::receive, "peer-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        sender.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        cache.setListener(this::share);
+    }
+
+    public void addPeer(InetSocketAddress peer) {
+        peers.add(peer);
+    }
+
+    public Set<InetSocketAddress> getPeers() {
+        return Collections.unmodifiableSet(peers);
+    }
+
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    /** @return The number of records sent to peers, counting each peer separately. */
+    public long getRecordsSent() {
+        return recordsSent.get();
+    }
+
+    /** @return The number of records received from peers. */
+    public long getRecordsReceived() {
+        return recordsReceived.get();
+    }
+
+    /** @return The number of records not sent because too many were waiting to be sent. */
+    public long getRecordsDropped() {
+        return recordsDropped.get();
+    }
+
+    /** @return The number of records received from peers that were not added to the cache. */
+    public long getRecordsRejected() {
+        return recordsRejected.get();
+    }
+
+    /** @return The number of queries for which a peer returned records. */
+    public long getQueryHits() {
+        return queryHits.get();
+    }
+
+    /** @return The number of queries for which no peer returned records in time. */
+    public long getQueryMisses() {
+        return queryMisses.get();
+    }
+
+    /** Queues a record to be sent to the peers in the next batch. */
+    private void share(ResourceRecord record) {
+        if (record.getType() == RecordType.OTHER || peers.isEmpty())
+            return;
+        if (outgoingCount.incrementAndGet() > MAX_PENDING_RECORDS) {
+            outgoingCount.decrementAndGet();
+            recordsDropped.incrementAndGet();
+            return;
+        }
+        outgoing.add(record);
+    }
+
+    /** Sends all queued records to every peer, in as many messages as needed. */
+    private void flush() {
+        try {
+            sendBatch();
+        } catch (RuntimeException e) {
+            // An exception would cancel the periodic flush; the batch is lost, but later ones are sent
+        }
+    }
+
+    private void sendBatch() {
+        List<ResourceRecord> batch = new ArrayList<>();
+        ResourceRecord record;
+        while ((record = outgoing.poll()) != null) {
+            outgoingCount.decrementAndGet();
+            batch.add(record);
+        }
+
+        for (int start = 0; start < batch.size(); ) {
+            ByteBuffer message = newMessage(RECORDS, (short) 0);
+            int count = 0;
+            while (start + count < batch.size() && putRecord(message, batch.get(start + count)))
+                count++;
+            // A record that does not fit in an empty message cannot be shared
+            if (count == 0) {
+                start++;
+                continue;
+            }
+            message.putShort(4, (short) count);
+            for (InetSocketAddress peer : peers) {
+                send(message, peer);
+                recordsSent.addAndGet(count);
+            }
+            start += count;
+        }
+    }
+
+    /** Asks every peer for the records of a set of nodes, waiting for at most the specified
+     * time. Records returned by peers are added to the cache.
+     *
+     * @param nodes         Nodes (host name and record type) to be searched.
+     * @param timeoutMillis Maximum time to wait for the peers to answer.
+     * @return true if a peer returned records for any of the nodes, or false otherwise.
+     */
+    public boolean ask(List<DNSNode> nodes, long timeoutMillis) {
+        Set<InetSocketAddress> targets = new HashSet<>(peers);
+        if (targets.isEmpty())
+            return false;
+
+        short queryID = (short) (Math.floorMod(nextQueryID.incrementAndGet(), Short.MAX_VALUE) + 1);
+        ByteBuffer message = newMessage(QUERY, queryID);
+        int count = 0;
+        for (DNSNode node : nodes) {
+            byte[] name = node.getWireName();
+            if (message.remaining() < name.length + 2) break;
+            message.put(name).putShort((short) node.getType().getCode());
+            count++;
+        }
+        message.putShort(4, (short) count);
+
+        PendingQuery pending = new PendingQuery(targets.size());
+        pendingQueries.put(queryID, pending);
+        try {
+            for (InetSocketAddress peer : targets)
+                send(message, peer);
+            boolean found = pending.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            (found ? queryHits : queryMisses).incrementAndGet();
+            return found;
+        } catch (TimeoutException | ExecutionException e) {
+            queryMisses.incrementAndGet();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            pendingQueries.remove(queryID, pending);
+        }
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[65535];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (SocketException e) {
+                // The socket was closed
+                return;
+            } catch (Exception e) {
+                continue;
+            }
+
+            InetSocketAddress peer = (InetSocketAddress) packet.getSocketAddress();
+            if (!peers.contains(peer) || packet.getLength() < HEADER_SIZE || buffer[0] != VERSION)
+                continue;
+            byte[] message = Arrays.copyOf(buffer, packet.getLength());
+            try {
+                if (message[1] == QUERY)
+                    answerQuery(message, peer);
+                else if (message[1] == RECORDS)
+                    addRecords(message);
+            } catch (RuntimeException e) {
+                // Malformed message, ignored
+            }
+        }
+    }
+
+    private void answerQuery(byte[] query, InetSocketAddress peer) {
+        ByteBuffer in = ByteBuffer.wrap(query);
+        short queryID = in.getShort(2);
+        int count = Short.toUnsignedInt(in.getShort(4));
+
+        ByteBuffer message = newMessage(RECORDS, queryID);
+        int records = 0;
+        int pos = HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            int typePos = RecordData.skipName(query, pos);
+            DNSNode node = new DNSNode(query, pos, RecordType.getByCode(Short.toUnsignedInt(in.getShort(typePos))));
+            pos = typePos + 2;
+            for (ResourceRecord record : cache.getCachedResults(node))
+                if (putRecord(message, record))
+                    records++;
+        }
+        message.putShort(4, (short) records);
+        send(message, peer);
+    }
+
+    private void addRecords(byte[] message) {
+        ByteBuffer in = ByteBuffer.wrap(message);
+        short queryID = in.getShort(2);
+        int count = Short.toUnsignedInt(in.getShort(4));
+
+        int pos = HEADER_SIZE;
+        int added = 0;
+        // Queries with no cached records when the message arrived, which may take all its records
+        Set<DNSNode> filled = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            int typePos = RecordData.skipName(message, pos);
+            int typeCode = Short.toUnsignedInt(in.getShort(typePos));
+            RecordType type = RecordType.getByCode(typeCode);
+            long ttl = Math.min(Integer.toUnsignedLong(in.getInt(typePos + 2)), MAX_PEER_TTL);
+            int length = Short.toUnsignedInt(in.getShort(typePos + 6));
+            int rdata = typePos + 8;
+            if (rdata + length > message.length)
+                throw new BufferUnderflowException();
+
+            DNSNode node = new DNSNode(message, pos, type);
+            pos = rdata + length;
+            boolean rootZone = type == RecordType.NS && node.getWireName().length == 1;
+            if (rootZone || !filled.contains(node) && !cache.getCachedResults(node).isEmpty()) {
+                recordsRejected.incrementAndGet();
+                continue;
+            }
+            filled.add(node);
+
+            ResourceRecord record;
+            if (type == RecordType.A && length == 4)
+                record = new ResourceRecord(node, ttl, in.getInt(rdata));
+            else if (type == RecordType.AAAA && length == 16)
+                record = new ResourceRecord(node, ttl, in.getLong(rdata), in.getLong(rdata + 8));
+            else
+                record = new ResourceRecord(node, ttl, new RecordData(type, typeCode, message, rdata, length));
+            // Records from peers are not shared again, so they do not travel back and forth
+            cache.addResult(record, false);
+            added++;
+        }
+        recordsReceived.addAndGet(added);
+
+        PendingQuery pending = queryID == 0 ? null : pendingQueries.get(queryID);
+        if (pending != null) {
+            if (added > 0)
+                pending.result.complete(true);
+            else if (pending.remaining.decrementAndGet() == 0)
+                pending.result.complete(false);
+        }
+    }
+
+    private static ByteBuffer newMessage(byte kind, short id) {
+        ByteBuffer message = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+        message.put(VERSION).put(kind).putShort(id).putShort((short) 0);
+        return message;
+    }
+
+    /** Appends a record to a message, if there is enough space left.
+     *
+     * @return true if the record was added, or false if it does not fit.
+     */
+    private static boolean putRecord(ByteBuffer message, ResourceRecord record) {
+        long ttl = record.getTTL();
+        if (ttl <= 0 || record.getType() == RecordType.OTHER || !record.isAddress() && record.getRecordData() == null)
+            return false;
+        byte[] name = record.getNode().getWireName();
+        byte[] rdata = record.isAddress() ? record.getInetResult().getAddress() :
+                record.getRecordData().getUncompressedBytes();
+        if (message.remaining() < name.length + 10 + rdata.length)
+            return false;
+        message.put(name)
+                .putShort((short) record.getType().getCode())
+                .putInt((int) Math.min(ttl, Integer.MAX_VALUE))
+                .putShort((short) rdata.length)
+                .put(rdata);
+        return true;
+    }
+
+    private void send(ByteBuffer message, InetSocketAddress peer) {
+        try {
+            socket.send(new DatagramPacket(message.array(), message.position(), peer));
+        } catch (Exception e) {
+            // Peers are optional; a peer that cannot be reached just misses the message
+        }
+    }
+
+    @Override
+    public void close() {
+        cache.setListener(null);
+        sender.shutdownNow();
+        socket.close();
+    }
+}
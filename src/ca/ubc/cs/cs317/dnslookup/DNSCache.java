@@ -1,18 +1,35 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
  * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
  * the user.
+ *
+ * The cache may be shared by concurrent lookups. The set of records for each node is never
+ * modified in place: it is replaced by an updated copy, so readers and iterations never block
+ * writers and always see a consistent set of records for each node. Queries are kept in a
+ * hash map keyed by node, so iterations visit them in no particular order.
+ *
+ * Optionally, expired records may be kept for a grace period (the stale window), during which
+ * they are not returned as regular results, but can still be obtained with getStaleResults,
+ * e.g., to answer a query while the upstream servers cannot be reached (RFC 8767).
  */
 public class DNSCache {
 
     private static DNSCache instance = new DNSCache();
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private ConcurrentMap<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults =
+            new ConcurrentHashMap<>();
+    private volatile long staleWindowNanos = 0;
+    private volatile Consumer<ResourceRecord> listener;
+
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
      *
@@ -23,9 +40,9 @@ public class DNSCache {
     }
 
     /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * are cached for the specified query, returns an empty set. Expired results are never
+     * returned, and are removed from the cache unless they are still in the stale window. This
+     * method does not perform the query itself, it only returns previously cached results.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
@@ -35,10 +52,55 @@ public class DNSCache {
         if (results == null)
             return Collections.emptySet();
 
-        results.keySet().removeIf(record -> !record.isStillValid());
+        long window = staleWindowNanos;
+        if (hasExpired(results, window))
+            results = cachedResults.computeIfPresent(node, (key, current) -> withoutExpired(current, window));
+        if (results == null)
+            return Collections.emptySet();
+        // Records still in the stale window are kept in the cache, but are not valid results
+        if (window > 0 && hasExpired(results, 0)) {
+            results = withoutExpired(results, 0);
+            if (results == null)
+                return Collections.emptySet();
+        }
         return Collections.unmodifiableSet(results.keySet());
     }
 
+    /** Returns the set of records for a particular query that have expired, but are still within
+     * the stale window. The stale window is disabled by default, in which case this method
+     * always returns an empty set.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of expired resources associated to the query.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+        long window = staleWindowNanos;
+        if (results == null || window == 0)
+            return Collections.emptySet();
+
+        Set<ResourceRecord> stale = new HashSet<>();
+        for (ResourceRecord record : results.keySet())
+            if (!record.isStillValid() && !record.expiredLongerThan(window))
+                stale.add(record);
+        return Collections.unmodifiableSet(stale);
+    }
+
+    /** Sets how long expired records are kept in the cache to be served stale. A value of zero
+     * disables serving stale records, and expired records are removed as soon as they are found.
+     *
+     * @param seconds Stale window, in seconds.
+     */
+    public void setStaleWindow(long seconds) {
+        if (seconds < 0)
+            throw new IllegalArgumentException("Stale window must not be negative");
+        staleWindowNanos = seconds * 1_000_000_000L;
+    }
+
+    public long getStaleWindow() {
+        return staleWindowNanos / 1_000_000_000L;
+    }
+
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
      * resource record, the existing record is replaced if the new one expires after the existing
      * record, otherwise the existing record is maintained.
@@ -47,45 +109,128 @@ public class DNSCache {
      *               of a DNS query.
      */
     public void addResult(ResourceRecord record) {
+        addResult(record, true);
+    }
+
+    /** Adds a specific resource record to the DNS cache, like addResult(ResourceRecord), but
+     * optionally without notifying the listener, e.g., for records that the listener itself
+     * obtained.
+     *
+     * @param record         Resource record containing the result of a DNS query.
+     * @param notifyListener If true, the listener is notified if the record is added.
+     */
+    public void addResult(ResourceRecord record, boolean notifyListener) {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
-        }
+        boolean[] added = new boolean[1];
+        cachedResults.compute(record.getNode(), (node, current) -> {
+            added[0] = true;
+            if (current == null)
+                return Collections.singletonMap(record, record);
+
+            ResourceRecord oldRecord = current.get(record);
+            if (oldRecord != null && !oldRecord.expiresBefore(record)) {
+                added[0] = false;
+                return current;
+            }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
+            Map<ResourceRecord, ResourceRecord> results = new HashMap<>(current);
+            // put alone would keep the old key, and results are read from the key set
+            results.remove(record);
             results.put(record, record);
+            return results;
+        });
+
+        Consumer<ResourceRecord> current = listener;
+        if (added[0] && notifyListener && current != null)
+            current.accept(record);
+    }
+
+    /** Sets an action to be performed for every record added to the cache, or replacing an
+     * equivalent record that expires earlier. The action is performed by the thread adding the
+     * record, so it should not block.
+     *
+     * @param listener Action to be performed for each new record, or null for no action.
+     */
+    public void setListener(Consumer<ResourceRecord> listener) {
+        this.listener = listener;
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * be specified using a lambda expression or method name. Expired records are not passed to
+     * the action.
+     *
+     * The iteration does not lock the cache: records may be added while it runs, and the action
+     * receives, for each query, the set of records cached at the time the query is reached.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        forEachNode(node -> true, consumer);
+    }
+
+    /** Perform a specific action for each query accepted by a filter and its set of cached
+     * records. Like forEachNode(BiConsumer), this does not lock the cache.
+     *
+     * @param filter   Condition that a query must satisfy for the action to be performed.
+     * @param consumer Action to be performed for each query and set of records.
+     */
+    public void forEachNode(Predicate<DNSNode> filter, BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
         for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+            if (!filter.test(entry.getKey())) continue;
+            Map<ResourceRecord, ResourceRecord> results = entry.getValue();
+            if (hasExpired(results, 0))
+                results = withoutExpired(results, 0);
+            if (results != null)
+                consumer.accept(entry.getKey(), Collections.unmodifiableSet(results.keySet()));
         }
     }
 
     /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * specified using a lambda expression or method name. Expired records are not passed to
+     * the action. Like forEachNode, this does not lock the cache.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
-        }
+        forEachNode((node, records) -> records.forEach(record -> consumer.accept(node, record)));
+    }
+
+    /** Removes all expired records from the cache, except those still in the stale window.
+     * Queries with no records left are removed entirely.
+     */
+    public void removeExpired() {
+        long window = staleWindowNanos;
+        for (DNSNode node : cachedResults.keySet())
+            cachedResults.computeIfPresent(node, (key, current) ->
+                    hasExpired(current, window) ? withoutExpired(current, window) : current);
+    }
+
+    /** Removes the expired records of a query, including those still in the stale window, e.g.,
+     * once the query has been refreshed and its old records must no longer be served stale.
+     *
+     * @param node DNS query (host name and record type) whose expired records are removed.
+     */
+    public void removeExpired(DNSNode node) {
+        cachedResults.computeIfPresent(node, (key, current) ->
+                hasExpired(current, 0) ? withoutExpired(current, 0) : current);
+    }
+
+    private static boolean hasExpired(Map<ResourceRecord, ResourceRecord> results, long window) {
+        for (ResourceRecord record : results.keySet())
+            if (record.expiredLongerThan(window))
+                return true;
+        return false;
+    }
+
+    private static Map<ResourceRecord, ResourceRecord> withoutExpired(Map<ResourceRecord, ResourceRecord> results,
+                                                                      long window) {
+        Map<ResourceRecord, ResourceRecord> valid = new HashMap<>();
+        for (ResourceRecord record : results.keySet())
+            if (!record.expiredLongerThan(window))
+                valid.put(record, record);
+        return valid.isEmpty() ? null : valid;
     }
 
 }
@@ -1,29 +1,94 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.io.Console;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.*;
 import java.net.*;
-import java.nio.Buffer;
-import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
 
 public class DNSLookupService {
 
     private static final int DEFAULT_DNS_PORT = 53;
+    private static final int RCODE_NO_ERROR = 0;
+    private static final int RCODE_NAME_ERROR = 3;
     private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final int MAX_REFERRALS = 16;
+    private static final int MAX_SERVER_ATTEMPTS = 3;
+    private static final int MAX_CONCURRENT_BATCH_QUERIES = 64;
+    private static final long MAX_UPSTREAM_WAIT_MILLIS = 2000;
+    private static final int MAX_BUSY_RETRIES = 4;
+    private static final long BUSY_RETRY_DELAY_MILLIS = 250;
+    private static final long STALE_TTL = 30;
+    private static final long PEER_QUERY_TIMEOUT_MILLIS = 200;
+    private static final long CACHE_SWEEP_INTERVAL_SECONDS = 60;
 
     private static InetAddress rootServer;
+    private static RootServers rootServers = RootServers.fromHints();
     private static boolean verboseTracing = false;
-    private static DatagramSocket socket;
+    private static final List<DatagramSocket> openSockets = Collections.synchronizedList(new ArrayList<>());
+    /** Socket of each thread that sends queries. It is closed when a worker thread ends. */
+    private static final ThreadLocal<DatagramSocket> sockets = new ThreadLocal<>();
 
     private static DNSCache cache = DNSCache.getInstance();
 
     private static Random random = new Random();
-    private static short questionID;
-    private static int offset;
-    private static ByteBuffer buffer;
-    private static List<ResourceRecord> nameservers;
+    private static final AtomicLong queriesSent = new AtomicLong();
+    /** Names of batches and sweeps that could not be looked up because upstream servers stayed busy. */
+    private static final AtomicLong namesBusy = new AtomicLong();
+    private static final UpstreamLimiter upstreamLimiter = new UpstreamLimiter(100, 20, 16, MAX_UPSTREAM_WAIT_MILLIS);
+
+    /** Delegations currently being obtained, keyed by the NS node of the zone cut being looked
+     * for. Lookups that need the same delegation wait for the one in progress. */
+    private static final ConcurrentMap<DNSNode, CountDownLatch> pendingDelegations = new ConcurrentHashMap<>();
+
+    /** Time a lookup waits for a refresh before answering with stale records. */
+    private static volatile long staleAnswerDeadlineMillis = 1800;
+    /** Refreshes of stale records in progress. They keep running after stale records are returned. */
+    private static final ConcurrentMap<DNSNode, CompletableFuture<LookupOutcome>> staleRefreshes = new ConcurrentHashMap<>();
+
+    /** How a lookup sent to the servers for a name ended. */
+    private enum LookupOutcome {
+        /** The authority returned records for the name, or a CNAME for it. */
+        ANSWER,
+        /** The authority reported that the name does not exist, or has no records of the type. */
+        NEGATIVE,
+        /** No server answered, servers were busy or failed, or referrals led nowhere. */
+        FAILED
+    }
+
+    /** Capture file recording the datagrams exchanged with upstream servers, if any. */
+    private static volatile PacketCapture packetCapture;
+    /** Fake upstream replaying a capture file, if any. When set, all queries are sent to it. */
+    private static volatile ReplayServer replayServer;
+    /** Other resolver instances sharing their cache with this one, if any. */
+    private static volatile CachePeers cachePeers;
+
+    private static final ExecutorService resolverPool =
+            Executors.newCachedThreadPool(runnable -> newWorker(runnable, "resolver"));
+    /** Runs the lookups of batches and reverse sweeps, with at most MAX_CONCURRENT_BATCH_QUERIES at a
+     * time. Threads that stay idle are discarded, closing their sockets. */
+    private static final ThreadPoolExecutor batchPool = new ThreadPoolExecutor(
+            MAX_CONCURRENT_BATCH_QUERIES, MAX_CONCURRENT_BATCH_QUERIES, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> newWorker(runnable, "batch"));
+
+    /** Periodically removes expired records from the cache, including those of queries that are
+     * never looked up again, and the limiter state of servers that are no longer queried. */
+    private static final ScheduledExecutorService cacheSweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cache-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        batchPool.allowCoreThreadTimeOut(true);
+        cacheSweeper.scheduleWithFixedDelay(cache::removeExpired,
+                CACHE_SWEEP_INTERVAL_SECONDS, CACHE_SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        cacheSweeper.scheduleWithFixedDelay(upstreamLimiter::removeIdle,
+                CACHE_SWEEP_INTERVAL_SECONDS, CACHE_SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
 
 
     /**
@@ -33,29 +98,36 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
-        if (args.length != 1) {
+        if (args.length > 1) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar [rootServer]");
             System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("If no root server is specified, the built-in root hints are used.");
             System.exit(1);
         }
 
-        try {
-            rootServer = InetAddress.getByName(args[0]);
-            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
-        } catch (UnknownHostException e) {
-            System.err.println("Invalid root server (" + e.getMessage() + ").");
-            System.exit(1);
+        if (args.length == 1) {
+            try {
+                rootServer = InetAddress.getByName(args[0]);
+                System.out.println("Root DNS server is: " + rootServer.getHostAddress());
+            } catch (UnknownHostException e) {
+                System.err.println("Invalid root server (" + e.getMessage() + ").");
+                System.exit(1);
+            }
+        } else {
+            System.out.println("Root DNS servers are: built-in root hints");
         }
 
         try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
-        } catch (SocketException ex) {
+            getSocket();
+        } catch (UncheckedIOException ex) {
             ex.printStackTrace();
             System.exit(1);
         }
 
+        if (rootServer == null)
+            primeRootServers();
+
         Scanner in = new Scanner(System.in);
         Console console = System.console();
         do {
@@ -86,8 +158,26 @@ public class DNSLookupService {
                     commandArgs[0].equalsIgnoreCase("exit"))
                 break;
             else if (commandArgs[0].equalsIgnoreCase("server")) {
-                // SERVER: Change root nameserver
-                if (commandArgs.length == 2) {
+                // SERVER: Show or change root nameserver, or go back to the root hints
+                if (commandArgs.length == 1) {
+                    if (rootServer != null) {
+                        System.out.println("Root DNS server is: " + rootServer.getHostAddress());
+                        continue;
+                    }
+                    List<InetAddress> servers = rootServers.getRankedServers();
+                    System.out.println("Root DNS servers are: " + servers.size() + " root servers, in the order they are queried");
+                    for (InetAddress server : servers) {
+                        long rtt = rootServers.getRtt(server);
+                        if (rtt < 0)
+                            System.out.printf("\t%-16s unmeasured\n", server.getHostAddress());
+                        else
+                            System.out.printf("\t%-16s %8.1f ms\n", server.getHostAddress(), rtt / 1e6);
+                    }
+                } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("hints")) {
+                    rootServer = null;
+                    System.out.println("Root DNS servers are now: built-in root hints");
+                    primeRootServers();
+                } else if (commandArgs.length == 2) {
                     try {
                         rootServer = InetAddress.getByName(commandArgs[1]);
                         System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
@@ -96,7 +186,7 @@ public class DNSLookupService {
                         continue;
                     }
                 } else {
-                    System.out.println("Invalid call. Format:\n\tserver IP");
+                    System.out.println("Invalid call. Format:\n\tserver [IP|hints]");
                     continue;
                 }
             } else if (commandArgs[0].equalsIgnoreCase("trace")) {
@@ -115,6 +205,138 @@ public class DNSLookupService {
                     System.err.println("Invalid call. Format:\n\ttrace on|off");
                     continue;
                 }
+            } else if (commandArgs[0].equalsIgnoreCase("limit")) {
+                // LIMIT: Show or change the limits applied to queries sent to each server
+                if (commandArgs.length == 4) {
+                    try {
+                        upstreamLimiter.setLimits(Double.parseDouble(commandArgs[1]),
+                                Integer.parseInt(commandArgs[2]), Integer.parseInt(commandArgs[3]));
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid limits (" + ex.getMessage() + ").");
+                        continue;
+                    }
+                } else if (commandArgs.length != 1) {
+                    System.err.println("Invalid call. Format:\n\tlimit [queriesPerSecond burst maxInFlight]");
+                    continue;
+                }
+                upstreamLimiter.removeIdle();
+                System.out.printf("Per-server limits: %.1f queries/s, burst %d, %d in flight; %d queries delayed, %d rejected; %d servers active\n",
+                        upstreamLimiter.getQueriesPerSecond(), upstreamLimiter.getBurst(), upstreamLimiter.getMaxInFlight(),
+                        upstreamLimiter.getDelayedCount(), upstreamLimiter.getRejectedCount(), upstreamLimiter.getServerCount());
+            } else if (commandArgs[0].equalsIgnoreCase("stale")) {
+                // STALE: Show or change how expired records are served when upstream servers are slow
+                if (commandArgs.length == 2 || commandArgs.length == 3) {
+                    try {
+                        long window = Long.parseLong(commandArgs[1]);
+                        long deadline = commandArgs.length == 3 ? Long.parseLong(commandArgs[2]) : staleAnswerDeadlineMillis;
+                        if (deadline < 0)
+                            throw new IllegalArgumentException("Deadline must not be negative");
+                        cache.setStaleWindow(window);
+                        staleAnswerDeadlineMillis = deadline;
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid stale settings (" + ex.getMessage() + ").");
+                        continue;
+                    }
+                } else if (commandArgs.length != 1) {
+                    System.err.println("Invalid call. Format:\n\tstale [windowSeconds [deadlineMillis]]");
+                    continue;
+                }
+                if (cache.getStaleWindow() == 0)
+                    System.out.println("Serve-stale is now: OFF");
+                else
+                    System.out.println("Serve-stale is now: ON (window " + cache.getStaleWindow() + " s, deadline "
+                            + staleAnswerDeadlineMillis + " ms)");
+            } else if (commandArgs[0].equalsIgnoreCase("capture")) {
+                // CAPTURE: Record the datagrams exchanged with upstream servers to a file
+                if (commandArgs.length != 2) {
+                    System.err.println("Invalid call. Format:\n\tcapture file|off");
+                    continue;
+                }
+                stopCapture();
+                if (!commandArgs[1].equalsIgnoreCase("off")) {
+                    try {
+                        packetCapture = new PacketCapture(new File(commandArgs[1]));
+                    } catch (IOException ex) {
+                        System.err.println("Cannot open capture file (" + ex.getMessage() + ").");
+                        continue;
+                    }
+                }
+                System.out.println("Packet capture is now: " + (packetCapture != null ? "ON" : "OFF"));
+            } else if (commandArgs[0].equalsIgnoreCase("replay")) {
+                // REPLAY: Decode a capture file, or answer upstream queries from it
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    stopReplay();
+                    System.out.println("Replay is now: OFF");
+                } else if (commandArgs.length >= 3 && commandArgs[1].equalsIgnoreCase("decode")) {
+                    int iterations;
+                    try {
+                        iterations = commandArgs.length > 3 ? Integer.parseInt(commandArgs[3]) : 1;
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid number of iterations (" + ex.getMessage() + ").");
+                        continue;
+                    }
+                    try {
+                        replayDecode(PacketCapture.read(new File(commandArgs[2])), iterations);
+                    } catch (IOException ex) {
+                        System.err.println("Cannot read capture file (" + ex.getMessage() + ").");
+                        continue;
+                    }
+                } else if ((commandArgs.length == 3 || commandArgs.length == 4 && commandArgs[3].equalsIgnoreCase("fast"))
+                        && commandArgs[1].equalsIgnoreCase("serve")) {
+                    stopReplay();
+                    try {
+                        replayServer = new ReplayServer(PacketCapture.read(new File(commandArgs[2])), commandArgs.length == 3);
+                    } catch (IOException ex) {
+                        System.err.println("Cannot replay capture file (" + ex.getMessage() + ").");
+                        continue;
+                    }
+                    System.out.println("Replay is now: ON (" + replayServer.getServerCount() + " servers, "
+                            + (commandArgs.length == 3 ? "recorded pacing" : "no delay") + ")");
+                } else {
+                    System.err.println("Invalid call. Format:\n\treplay decode file [iterations]\n\treplay serve file [fast]\n\treplay off");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("peer")) {
+                // PEER: Share cached records with other resolver instances
+                if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("listen")) {
+                    stopPeers();
+                    try {
+                        cachePeers = new CachePeers(cache, Integer.parseInt(commandArgs[2]));
+                    } catch (NumberFormatException | SocketException ex) {
+                        System.err.println("Cannot listen for peers (" + ex.getMessage() + ").");
+                        continue;
+                    }
+                } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("add")) {
+                    if (cachePeers == null) {
+                        System.err.println("Not listening for peers. Use:\n\tpeer listen port");
+                        continue;
+                    }
+                    // Without an address, getByName would return the loopback address
+                    int colon = commandArgs[2].lastIndexOf(':');
+                    if (colon <= 0) {
+                        System.err.println("Invalid peer (expected IP:port).");
+                        continue;
+                    }
+                    try {
+                        cachePeers.addPeer(new InetSocketAddress(InetAddress.getByName(commandArgs[2].substring(0, colon)),
+                                Integer.parseInt(commandArgs[2].substring(colon + 1))));
+                    } catch (UnknownHostException | IllegalArgumentException ex) {
+                        System.err.println("Invalid peer (" + ex.getMessage() + ").");
+                        continue;
+                    }
+                } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    stopPeers();
+                } else if (commandArgs.length != 1) {
+                    System.err.println("Invalid call. Format:\n\tpeer [listen port|add IP:port|off]");
+                    continue;
+                }
+                CachePeers peers = cachePeers;
+                if (peers == null)
+                    System.out.println("Peer sharing is now: OFF");
+                else
+                    System.out.printf("Peer sharing is now: ON (port %d, %d peers); %d records sent, %d received, %d rejected, %d dropped; %d peer hits, %d misses\n",
+                            peers.getLocalPort(), peers.getPeers().size(), peers.getRecordsSent(), peers.getRecordsReceived(),
+                            peers.getRecordsRejected(), peers.getRecordsDropped(), peers.getQueryHits(), peers.getQueryMisses());
             } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
                     commandArgs[0].equalsIgnoreCase("l")) {
                 // LOOKUP: Find and print all results associated to a name.
@@ -125,30 +347,93 @@ public class DNSLookupService {
                     try {
                         type = RecordType.valueOf(commandArgs[2].toUpperCase());
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME, SOA, TXT, PTR, SRV");
                         continue;
                     }
                 else {
                     System.err.println("Invalid call. Format:\n\tlookup hostName [type]");
                     continue;
                 }
-                findAndPrintResults(commandArgs[1], type);
+                try {
+                    findAndPrintResults(commandArgs[1], type);
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid host name (" + ex.getMessage() + ").");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("reverse")) {
+                // REVERSE: Find and print the PTR records of all addresses in a range.
+                if (commandArgs.length != 2) {
+                    System.err.println("Invalid call. Format:\n\treverse address[/prefixLength]");
+                    continue;
+                }
+                try {
+                    reverseSweep(ReverseRange.parse(commandArgs[1]));
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid address range (" + ex.getMessage() + ").");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Find and print all results for every name listed in a file.
+                RecordType type = RecordType.A;
+                if (commandArgs.length == 3)
+                    try {
+                        type = RecordType.valueOf(commandArgs[2].toUpperCase());
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME, SOA, TXT, PTR, SRV");
+                        continue;
+                    }
+                else if (commandArgs.length != 2) {
+                    System.err.println("Invalid call. Format:\n\tbatch file [type]");
+                    continue;
+                }
+                try {
+                    batchLookup(readHostNames(commandArgs[1]), type);
+                } catch (IOException ex) {
+                    System.err.println("Cannot read host names (" + ex.getMessage() + ").");
+                    continue;
+                }
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
-                // DUMP: Print all results still cached
-                cache.forEachNode(DNSLookupService::printResults);
+                // DUMP: Print all results still cached, optionally filtered and written to a file
+                if (commandArgs.length > 4) {
+                    System.err.println("Invalid call. Format:\n\tdump [suffix|*] [type|*] [file]");
+                    continue;
+                }
+                String suffix = commandArgs.length > 1 && !commandArgs[1].equals("*") ? commandArgs[1] : null;
+                RecordType type = null;
+                if (commandArgs.length > 2 && !commandArgs[2].equals("*"))
+                    try {
+                        type = RecordType.valueOf(commandArgs[2].toUpperCase());
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME, SOA, TXT, PTR, SRV");
+                        continue;
+                    }
+                dumpCache(suffix, type, commandArgs.length > 3 ? commandArgs[3] : null);
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
+                System.err.println("\treverse address[/prefixLength]");
+                System.err.println("\tbatch file [type]");
                 System.err.println("\ttrace on|off");
-                System.err.println("\tserver IP");
-                System.err.println("\tdump");
+                System.err.println("\tlimit [queriesPerSecond burst maxInFlight]");
+                System.err.println("\tstale [windowSeconds [deadlineMillis]]");
+                System.err.println("\tcapture file|off");
+                System.err.println("\treplay decode file [iterations]|serve file [fast]|off");
+                System.err.println("\tpeer [listen port|add IP:port|off]");
+                System.err.println("\tserver [IP|hints]");
+                System.err.println("\tdump [suffix|*] [type|*] [file]");
                 System.err.println("\tquit");
                 continue;
             }
 
         } while (true);
 
-        socket.close();
+        resolverPool.shutdownNow();
+        batchPool.shutdownNow();
+        cacheSweeper.shutdownNow();
+        openSockets.forEach(DatagramSocket::close);
+        stopCapture();
+        stopReplay();
+        stopPeers();
         System.out.println("Goodbye!");
     }
 
@@ -161,79 +446,220 @@ public class DNSLookupService {
     private static void findAndPrintResults(String hostName, RecordType type) {
 
         DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
+        try {
+            printResults(node, getResults(node, 0));
+        } catch (UpstreamBusyException e) {
+            System.err.println("Name cannot be looked up (" + e.getMessage() + ").");
+            printBusy(node);
+        }
     }
 
 
 
-    private static void createRequestHeader() {
-
-        questionID = (short) random.nextInt(Short.MAX_VALUE);
-        buffer.putShort(0, questionID);
-        // QR, OPCODE, AA, TC, RD, RA, Z, RCODE = 0
-        long zero = (long) 0;
-        buffer.putLong(2, zero);
-        //QDCOUNT
-        short QDCOUNT = (short) 1;
-        buffer.putShort(4, QDCOUNT);
-        // ANCOUNT, NSCOUNT, ARCOUNT = 0
-        buffer.putLong(6, zero);
-        buffer.putShort(10, (short) 0);
-        offset = 12;
-
+    private static void stopCapture() {
+        PacketCapture capture = packetCapture;
+        if (capture == null) return;
+        packetCapture = null;
+        try {
+            capture.close();
+            System.out.println(capture.getCount() + " datagrams captured");
+        } catch (IOException ex) {
+            System.err.println("Cannot write capture file (" + ex.getMessage() + ").");
+        }
     }
 
-    private static void fillOutQNAME(String hostName){
-        String[] hostNameSubstrings = hostName.split("\\.");
+    private static void stopPeers() {
+        CachePeers peers = cachePeers;
+        if (peers == null) return;
+        cachePeers = null;
+        peers.close();
+    }
 
-        for (String hostNameString: hostNameSubstrings){
+    private static void stopReplay() {
+        ReplayServer replay = replayServer;
+        if (replay == null) return;
+        replayServer = null;
+        try {
+            replay.close();
+        } catch (IOException ex) {
+            // Nothing else to release
+        }
+        System.out.println(replay.getAnsweredCount() + " queries answered from capture, "
+                + replay.getUnansweredCount() + " not answered");
+    }
 
-            int length = hostNameString.length();
-            try {
-                byte[] hostNameCharacters = hostNameString.getBytes("UTF-8");
-                buffer.put(offset, (byte) length);
-                offset++;
+    /**
+     * Decodes every response in a capture as fast as possible, and prints the decoding rate.
+     * Responses are decoded like those received from a server, but their records are not added
+     * to the cache, so only decoding is measured and the records of old captures are not used.
+     *
+     * @param exchanges  Exchanges read from a capture file.
+     * @param iterations Number of times every response is decoded.
+     */
+    private static void replayDecode(List<PacketCapture.Exchange> exchanges, int iterations) {
+        List<byte[]> responses = new ArrayList<>();
+        long bytes = 0;
+        for (PacketCapture.Exchange exchange : exchanges) {
+            if (exchange.getResponse() == null) continue;
+            responses.add(exchange.getResponse());
+            bytes += exchange.getResponse().length;
+        }
 
-                for (int i = 0; i < length; i++){
-                    buffer.put(offset + i, hostNameCharacters[i]);
+        int errors = 0;
+        long start = System.nanoTime();
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            for (int i = 0; i < responses.size(); i++) {
+                byte[] response = responses.get(i);
+                short questionID = (short) (((response[0] & 0xff) << 8) | (response[1] & 0xff));
+                try {
+                    new DNSResponse(response).decodeResponse(questionID, false);
+                } catch (RuntimeException ex) {
+                    errors++;
                 }
-
-                offset = offset + length;
-            } catch (UnsupportedEncodingException e) {
-                System.err.println("Host Name conversion failed: " + e.getMessage());
             }
-
         }
-        buffer.put(offset, (byte) 0);
-        offset++;
+        double seconds = (System.nanoTime() - start) / 1e9;
 
+        System.out.printf("%d responses decoded %d times, %d errors (%.3f s, %.0f responses/s, %.1f MB/s)\n",
+                responses.size(), iterations, errors, seconds, responses.size() * iterations / seconds,
+                bytes * iterations / seconds / 1e6);
     }
 
+    /**
+     * Finds and prints the PTR records of every address in a range. Only addresses with PTR
+     * records are printed, followed by a summary.
+     *
+     * @param range Range of addresses to be resolved.
+     */
+    private static void reverseSweep(ReverseRange range) {
+        long start = System.nanoTime();
+        long queries = queriesSent.get();
+        int size = range.size();
 
-    private static void createRequestQuestion(DNSNode node) {
+        long rejected = upstreamLimiter.getRejectedCount();
+        long busy = namesBusy.get();
 
-        fillOutQNAME(node.getHostName());
-        short QTYPE = (short) node.getType().getCode();
-        buffer.putShort(offset, QTYPE);
-        short QCLASS = (short) 1;   // CLASS = INTERNET
-        buffer.putShort(offset + 2, QCLASS);
-        offset = offset + 4;
+        int found = resolveAll(size, index -> new DNSNode(range.getName(index), RecordType.PTR), false);
 
+        System.out.printf("%d of %d addresses have PTR records, %d busy, %d queries sent, %d rejected by server limits (%.1f s)\n",
+                found, size, namesBusy.get() - busy, queriesSent.get() - queries,
+                upstreamLimiter.getRejectedCount() - rejected, (System.nanoTime() - start) / 1e9);
     }
 
+    /**
+     * Finds and prints all results for a list of host names. Names are sorted in canonical DNS
+     * order first, so names in the same zone are resolved close together and find the zone's
+     * delegation in the cache, or waiting to be obtained by another name in the batch.
+     *
+     * @param hostNames Fully qualified domain names of the hosts being searched.
+     * @param type      Record type for search.
+     */
+    private static void batchLookup(List<String> hostNames, RecordType type) {
+        long start = System.nanoTime();
+        long queries = queriesSent.get();
+        long rejected = upstreamLimiter.getRejectedCount();
+        long busy = namesBusy.get();
+
+        List<DNSNode> nodes = new ArrayList<>(hostNames.size());
+        for (String hostName : hostNames) {
+            try {
+                nodes.add(new DNSNode(hostName, type));
+            } catch (IllegalArgumentException ex) {
+                System.err.println("Invalid host name skipped (" + ex.getMessage() + ").");
+            }
+        }
+        Collections.sort(nodes);
 
-    private static byte[] createRequest(DNSNode node) {
-
-        buffer = ByteBuffer.allocate(512);
-        createRequestHeader();
-        createRequestQuestion(node);
+        int found = resolveAll(nodes.size(), nodes::get, true);
 
-        byte[] requestBuf = Arrays.copyOfRange(buffer.array(), 0, offset);
-        return requestBuf;
+        System.out.printf("%d of %d names have results, %d busy, %d queries sent, %d rejected by server limits (%.1f s)\n",
+                found, nodes.size(), namesBusy.get() - busy, queriesSent.get() - queries,
+                upstreamLimiter.getRejectedCount() - rejected, (System.nanoTime() - start) / 1e9);
+    }
 
+    private static List<String> readHostNames(String fileName) throws IOException {
+        List<String> hostNames = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim().split("#", 2)[0].trim();
+                if (!line.isEmpty())
+                    hostNames.add(line);
+            }
+        }
+        return hostNames;
     }
 
+    /**
+     * Resolves a sequence of nodes and prints their results as they become available. Lookups
+     * are pipelined, with up to MAX_CONCURRENT_BATCH_QUERIES outstanding at a time.
+     *
+     * A lookup that is rejected because upstream servers are busy is retried after a delay that
+     * doubles with every attempt. The lookup keeps its slot while it waits, so fewer new lookups
+     * are started while servers are busy. Nodes still rejected after MAX_BUSY_RETRIES retries
+     * are printed as busy, even if printEmpty is false, and are not counted as found.
+     *
+     * @param count      Number of nodes to be resolved.
+     * @param nodes      Function returning the node at each position, from 0 (zero) to count - 1.
+     * @param printEmpty If true, nodes without results are also printed.
+     * @return The number of nodes for which results were found.
+     */
+    private static int resolveAll(int count, IntFunction<DNSNode> nodes, boolean printEmpty) {
+        AtomicInteger found = new AtomicInteger();
+        Semaphore outstanding = new Semaphore(MAX_CONCURRENT_BATCH_QUERIES);
+        try {
+            for (int i = 0; i < count; i++) {
+                DNSNode node = nodes.apply(i);
+                outstanding.acquire();
+                batchPool.execute(() -> {
+                    try {
+                        Set<ResourceRecord> results = getResultsWhenNotBusy(node);
+                        if (results == null) {
+                            namesBusy.incrementAndGet();
+                            printBusy(node);
+                            return;
+                        }
+                        if (!results.isEmpty())
+                            found.incrementAndGet();
+                        if (printEmpty || !results.isEmpty())
+                            printResults(node, results);
+                    } finally {
+                        outstanding.release();
+                    }
+                });
+            }
+            outstanding.acquire(MAX_CONCURRENT_BATCH_QUERIES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return found.get();
+    }
 
+    /**
+     * Finds all the results for a node, retrying with increasing delays while upstream servers
+     * are busy.
+     *
+     * @param node Host name and record type to be used for search.
+     * @return A set of resource records, or null if servers were still busy after MAX_BUSY_RETRIES retries.
+     */
+    private static Set<ResourceRecord> getResultsWhenNotBusy(DNSNode node) {
+        long delay = BUSY_RETRY_DELAY_MILLIS;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return getResults(node, 0);
+            } catch (UpstreamBusyException e) {
+                if (attempt == MAX_BUSY_RETRIES)
+                    return null;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            delay *= 2;
+        }
+    }
 
     /**
      * Finds all the result for a specific node.
@@ -245,6 +671,7 @@ public class DNSLookupService {
      *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
      *                         returns an empty set.
      * @return A set of resource records corresponding to the specific query requested.
+     * @throws UpstreamBusyException if the servers for the node, or for a CNAME target, were busy.
      */
     private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
 
@@ -253,21 +680,35 @@ public class DNSLookupService {
             return Collections.emptySet();
         }
 
-        DNSNode cnameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
+        DNSNode cnameNode = new DNSNode(node, RecordType.CNAME);
         Set<ResourceRecord> results = cache.getCachedResults(node);
         Set<ResourceRecord> resultsCname = cache.getCachedResults(cnameNode);
 
         if (results.isEmpty() && resultsCname.isEmpty()) {
-            retrieveResultsFromServer(node, rootServer);
+            Set<ResourceRecord> staleResults = cache.getStaleResults(node);
+            Set<ResourceRecord> staleCname = cache.getStaleResults(cnameNode);
+            boolean hasStale = !staleResults.isEmpty() || !staleCname.isEmpty();
+
+            // Stale records are only used if the refresh fails or does not finish in time (RFC 8767)
+            LookupOutcome outcome = null;
+            if (hasStale)
+                outcome = refreshStaleResults(node, cnameNode);
+            else if (!askPeers(node, cnameNode))
+                retrieveResultsFromClosestServer(node);
             results = cache.getCachedResults(node);
             resultsCname = cache.getCachedResults(cnameNode);
+
+            if (outcome == LookupOutcome.FAILED && results.isEmpty() && resultsCname.isEmpty()) {
+                results = withStaleTTL(staleResults);
+                resultsCname = withStaleTTL(staleCname);
+            }
         }
 
         if (!resultsCname.isEmpty()) {
             results = new HashSet<>(results);
-            for (ResourceRecord cnameRecord : resultsCname) {
-                results.addAll(getResults(new DNSNode(cnameRecord.getTextResult(), node.getType()), indirectionLevel + 1));
-            }
+            Map<DNSNode, Integer> missing = new LinkedHashMap<>();
+            followCachedChain(resultsCname, node.getType(), indirectionLevel + 1, results, missing);
+            results.addAll(resolveMissingTargets(missing));
         }
 
         return results;
@@ -275,87 +716,447 @@ public class DNSLookupService {
 
     }
 
+    /**
+     * Asks the cache peers, if any, for the results of a node and its CNAME records. Results
+     * returned by peers are added to the cache.
+     *
+     * @param node      Host name and record type being looked up.
+     * @param cnameNode CNAME node of the same host name.
+     * @return true if a peer returned results, or false if no peer did within PEER_QUERY_TIMEOUT_MILLIS.
+     */
+    private static boolean askPeers(DNSNode node, DNSNode cnameNode) {
+        CachePeers peers = cachePeers;
+        return peers != null && peers.ask(Arrays.asList(node, cnameNode), PEER_QUERY_TIMEOUT_MILLIS);
+    }
 
+    /**
+     * Refreshes the results for a node whose cached records are stale, waiting for at most
+     * staleAnswerDeadlineMillis. If the refresh does not finish in time, it keeps running in
+     * the background, so a later lookup finds the refreshed records. Only one refresh runs at
+     * a time for each node. Once the authority answers, positively or negatively, the stale
+     * records of the node and its CNAME node are removed, so they are not served again.
+     *
+     * @param node      Host name and record type to be refreshed.
+     * @param cnameNode CNAME node of the same host name.
+     * @return The outcome of the refresh, or FAILED if it did not finish in time.
+     */
+    private static LookupOutcome refreshStaleResults(DNSNode node, DNSNode cnameNode) {
+        CompletableFuture<LookupOutcome> refresh = new CompletableFuture<>();
+        CompletableFuture<LookupOutcome> pending = staleRefreshes.putIfAbsent(node, refresh);
+        if (pending == null) {
+            CompletableFuture<LookupOutcome> started = refresh;
+            resolverPool.execute(() -> {
+                LookupOutcome outcome = LookupOutcome.FAILED;
+                try {
+                    outcome = retrieveResultsFromClosestServer(node);
+                    if (outcome != LookupOutcome.FAILED) {
+                        cache.removeExpired(node);
+                        cache.removeExpired(cnameNode);
+                    }
+                } catch (UpstreamBusyException e) {
+                    // Stale records will be returned
+                } finally {
+                    staleRefreshes.remove(node, started);
+                    started.complete(outcome);
+                }
+            });
+        } else {
+            refresh = pending;
+        }
+
+        try {
+            return refresh.get(staleAnswerDeadlineMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return LookupOutcome.FAILED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return LookupOutcome.FAILED;
+        }
+    }
+
+    private static Set<ResourceRecord> withStaleTTL(Set<ResourceRecord> records) {
+        Set<ResourceRecord> stale = new HashSet<>();
+        for (ResourceRecord record : records)
+            stale.add(record.withTTL(STALE_TTL));
+        return stale;
+    }
 
     /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
-     * and the query is repeated with a new server if the provided one is non-authoritative.
-     * Results are stored in the cache.
+     * Follows CNAME records as far as possible using only cached data. Since all records in a
+     * response are cached when it is decoded, this assembles the part of the chain (and the final
+     * results) that the server already included along with the CNAME itself. Targets for which
+     * nothing is cached are collected so they can be resolved separately.
      *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
+     * @param cnameRecords     CNAME records to be followed.
+     * @param type             Record type of the original query.
+     * @param indirectionLevel Indirection level of the targets of cnameRecords.
+     * @param results          Set where cached results for the chain are added.
+     * @param missing          Map where targets that must be queried are added, along with
+     *                         their indirection level.
      */
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
-        // TODO To be completed by the student
+    private static void followCachedChain(Set<ResourceRecord> cnameRecords, RecordType type,
+                                          int indirectionLevel, Set<ResourceRecord> results,
+                                          Map<DNSNode, Integer> missing) {
+        for (ResourceRecord cnameRecord : cnameRecords) {
+            DNSNode target = new DNSNode(cnameRecord.getTextResult(), type);
+            if (missing.containsKey(target)) continue;
+            if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
+                System.err.println("Maximum number of indirection levels reached.");
+                continue;
+            }
 
-        socket.connect(server, DEFAULT_DNS_PORT);
+            Set<ResourceRecord> targetResults = cache.getCachedResults(target);
+            Set<ResourceRecord> targetCnames = type == RecordType.CNAME ? targetResults :
+                    cache.getCachedResults(new DNSNode(target, RecordType.CNAME));
 
-        byte[] requestBuf = createRequest(node);
-        byte[] resultBuf = new byte[1024];
+            if (targetResults.isEmpty() && targetCnames.isEmpty()) {
+                missing.put(target, indirectionLevel);
+            } else {
+                results.addAll(targetResults);
+                followCachedChain(targetCnames, type, indirectionLevel + 1, results, missing);
+            }
+        }
+    }
 
-        DatagramPacket packet = new DatagramPacket(requestBuf, requestBuf.length, server, DEFAULT_DNS_PORT);
-        DatagramPacket receivePacket = new DatagramPacket(resultBuf, resultBuf.length);
+    /**
+     * Resolves the CNAME targets that could not be found in the cache. If there is more than one
+     * target, each one is resolved in a separate thread, so branches do not wait on each other.
+     *
+     * @param missing Targets to be resolved, along with their indirection level.
+     * @return The combined results for all targets.
+     * @throws UpstreamBusyException if the servers for any of the targets were busy.
+     */
+    private static Set<ResourceRecord> resolveMissingTargets(Map<DNSNode, Integer> missing) {
+        if (missing.isEmpty())
+            return Collections.emptySet();
 
-        boolean resend = true;
+        Iterator<Map.Entry<DNSNode, Integer>> iterator = missing.entrySet().iterator();
+        Map.Entry<DNSNode, Integer> first = iterator.next();
 
-        while (resend) {
-            try {
+        List<Future<Set<ResourceRecord>>> branches = new ArrayList<>();
+        while (iterator.hasNext()) {
+            Map.Entry<DNSNode, Integer> entry = iterator.next();
+            branches.add(resolverPool.submit(() -> getResults(entry.getKey(), entry.getValue())));
+        }
 
-                // send resquest to server
-                socket.send(packet);
+        Set<ResourceRecord> results = new HashSet<>(getResults(first.getKey(), first.getValue()));
+        for (Future<Set<ResourceRecord>> branch : branches) {
+            try {
+                results.addAll(branch.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UpstreamBusyException)
+                    throw (UpstreamBusyException) e.getCause();
+                System.err.println("Error: " + e.getCause().getMessage());
+            }
+        }
+        return results;
+    }
 
-                // receive result from server
-                socket.receive(receivePacket);
 
-                // decode result
-                DNSResponse helper = new DNSResponse(node, resultBuf);
-                helper.decodeResponse(questionID);
 
-                if (verboseTracing) {
-                    printDNSResponse(node, helper, server);
+    /**
+     * Retrieves DNS results for a node, starting at the closest zone for which name servers are
+     * cached (or at the root server), and following referrals until an authoritative response is
+     * obtained. Results are stored in the cache.
+     *
+     * Concurrent lookups share delegation work: when a lookup needs to find the zone cut below
+     * the closest known zone, and another lookup is already asking the same servers about the
+     * same cut, it waits for that query to complete and then starts again from the updated
+     * cache. The number of queries for delegations thus depends on the number of distinct zones,
+     * not on the number of names being looked up.
+     *
+     * @param node Host name and record type to be used for the query.
+     * @return How the lookup ended.
+     * @throws UpstreamBusyException if every server tried for some step of the lookup was busy.
+     */
+    private static LookupOutcome retrieveResultsFromClosestServer(DNSNode node) {
+        Set<DNSNode> waited = new HashSet<>();
+        int minDepth = 0;
+
+        for (int step = 0; step < 2 * MAX_REFERRALS; step++) {
+            String zone = node.getHostName();
+            List<InetAddress> servers = Collections.emptyList();
+            while (!zone.isEmpty()) {
+                servers = getCachedServerAddresses(new DNSNode(zone, RecordType.NS));
+                if (!servers.isEmpty()) break;
+                int dot = zone.indexOf('.');
+                zone = dot < 0 ? "" : zone.substring(dot + 1);
+            }
+            if (servers.isEmpty())
+                servers = getRootServers();
+            else
+                Collections.shuffle(servers, random);
+
+            // A referral must lead to a zone below the one that was queried
+            int depth = countLabels(zone);
+            if (depth < minDepth) break;
+
+            DNSNode cut = getZoneCut(node.getHostName(), depth);
+            CountDownLatch delegation = null;
+            if (cut != null && !waited.contains(cut)) {
+                delegation = new CountDownLatch(1);
+                CountDownLatch pending = pendingDelegations.putIfAbsent(cut, delegation);
+                if (pending != null) {
+                    waited.add(cut);
+                    try {
+                        pending.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return LookupOutcome.FAILED;
+                    }
+                    continue;
                 }
+            }
 
-                // result is authoritative
-                if (helper.isAuthoritative()) {
-                    return;
+            DNSResponse response;
+            try {
+                response = queryServers(node, servers);
+            } finally {
+                if (delegation != null) {
+                    pendingDelegations.remove(cut, delegation);
+                    delegation.countDown();
                 }
+            }
 
-                // result is not authoritative
-                nameservers = helper.getNameServerRecords();
-                retrieveResultsFromNameServer(node);
+            if (response == null) break;
+            if (response.isAuthoritative() || response.getNameServerRecords().isEmpty())
+                return getOutcome(response);
+            minDepth = depth + 1;
+        }
 
-                return;
+        System.err.println("Name cannot be looked up.");
+        return LookupOutcome.FAILED;
+    }
 
+    /**
+     * Returns how a lookup ended, based on the final response obtained for it, i.e., a response
+     * that is not a referral.
+     *
+     * @param response Final response.
+     * @return ANSWER if the response has answers, NEGATIVE if it reports that the name or its
+     * records do not exist, or FAILED for any other error.
+     */
+    private static LookupOutcome getOutcome(DNSResponse response) {
+        int responseCode = response.getResponseCode();
+        if (responseCode == RCODE_NO_ERROR && !response.getAnswerRecords().isEmpty())
+            return LookupOutcome.ANSWER;
+        if (responseCode == RCODE_NO_ERROR || responseCode == RCODE_NAME_ERROR)
+            return LookupOutcome.NEGATIVE;
+        return LookupOutcome.FAILED;
+    }
 
-            } catch (SocketTimeoutException se) {
-                resend = false;
-                retrieveResultsFromNameServer(node);
-            } catch (Exception e) {
-                System.err.println("Error: " + e.getMessage());
-                e.printStackTrace();
+    /**
+     * Sends a query to a list of servers, in order, until one of them responds or
+     * MAX_SERVER_ATTEMPTS servers have been tried.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Addresses of the servers that may be used, in the order they are tried.
+     * @return The decoded response, or null if no server responded.
+     * @throws UpstreamBusyException if every server tried was busy.
+     */
+    private static DNSResponse queryServers(DNSNode node, List<InetAddress> servers) {
+        UpstreamBusyException busy = null;
+        boolean timedOut = false;
+        for (int i = 0; i < servers.size() && i < MAX_SERVER_ATTEMPTS; i++) {
+            try {
+                DNSResponse response = retrieveResultsFromServer(node, servers.get(i));
+                if (response != null)
+                    return response;
+                timedOut = true;
+            } catch (UpstreamBusyException e) {
+                busy = e;
             }
         }
+        if (busy != null && !timedOut)
+            throw busy;
+        return null;
+    }
 
-        System.err.println("Name cannot be looked up.");
-        return;
+    /**
+     * Retrieves DNS results from a specified DNS server. A single query is sent in iterative
+     * mode, and the results in the response are stored in the cache.
+     *
+     * @param node   Host name and record type to be used for the query.
+     * @param server Address of the server to be used for the query.
+     * @return The decoded response, or null if the server did not respond.
+     * @throws UpstreamBusyException if the server's query limits did not allow the query to be sent.
+     */
+    private static DNSResponse retrieveResultsFromServer(DNSNode node, InetAddress server) {
+
+        DatagramSocket socket = getSocket();
+        // While a capture is replayed, every server is simulated by a local address
+        ReplayServer replay = replayServer;
+        InetSocketAddress target = replay != null ? replay.getAddress(server) : new InetSocketAddress(server, DEFAULT_DNS_PORT);
+        socket.connect(target.getAddress(), target.getPort());
 
+        DNSQueryEncoder encoder = DNSQueryEncoder.get();
+        short questionID = (short) random.nextInt(Short.MAX_VALUE);
+        byte[] resultBuf = new byte[1024];
+
+        DatagramPacket packet;
+        try {
+            packet = new DatagramPacket(encoder.getBuffer(), encoder.encode(node, questionID), target);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return null;
+        }
+        DatagramPacket receivePacket = new DatagramPacket(resultBuf, resultBuf.length);
+
+        try {
+            if (!upstreamLimiter.acquire(server))
+                throw new UpstreamBusyException(server);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        long sent = System.nanoTime();
+        try {
+            // send request to server
+            socket.send(packet);
+            queriesSent.incrementAndGet();
+            PacketCapture capture = packetCapture;
+            if (capture != null)
+                capture.recordQuery(server, packet.getData(), packet.getLength());
+
+            // receive result from server
+            socket.receive(receivePacket);
+            rootServers.recordResponse(server, System.nanoTime() - sent);
+            if (capture != null)
+                capture.recordResponse(server, resultBuf, receivePacket.getLength());
+
+            // decode result
+            DNSResponse helper = new DNSResponse(resultBuf);
+            helper.decodeResponse(questionID);
+
+            if (verboseTracing) {
+                printDNSResponse(node, helper, server, questionID);
+            }
+            return helper;
+
+        } catch (SocketTimeoutException se) {
+            rootServers.recordTimeout(server);
+            return null;
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            return null;
+        } finally {
+            upstreamLimiter.release(server);
+        }
     }
 
-    private static void retrieveResultsFromNameServer(DNSNode node) {
-        if (nameservers.size() != 0) {
+    /**
+     * Returns the root servers to be used for a query. If a root server was specified by the
+     * user, only that server is used, otherwise all known root servers are used, fastest first.
+     *
+     * @return List of root server addresses, in the order they should be tried.
+     */
+    private static List<InetAddress> getRootServers() {
+        return rootServer != null ? Collections.singletonList(rootServer) : rootServers.getRankedServers();
+    }
 
-            String NS = nameservers.get(random.nextInt(nameservers.size())).getTextResult();
-            DNSNode NSNode = new DNSNode(NS, RecordType.A);
-            Set<ResourceRecord> results = cache.getCachedResults(NSNode);
-            results.forEach(result -> {
-                retrieveResultsFromServer(node, result.getInetResult());
+    /**
+     * Sends a priming query (NS records of the root zone) to every known root server in
+     * parallel, in the background. Each response caches the current root NS set and adds any
+     * new root server to the set of known roots, and the response times of all servers are
+     * recorded, so that lookups are sent to the fastest root servers from the start.
+     */
+    private static void primeRootServers() {
+        DNSNode rootZone = new DNSNode("", RecordType.NS);
+        for (InetAddress server : rootServers.getServers()) {
+            resolverPool.execute(() -> {
+                try {
+                    if (retrieveResultsFromServer(rootZone, server) != null)
+                        getCachedServerAddresses(rootZone).forEach(rootServers::addServer);
+                } catch (UpstreamBusyException e) {
+                    // The server is already busy with lookups, which also measure its response time
+                }
             });
+        }
+    }
 
+    /**
+     * Returns the cached addresses of the name servers of a zone.
+     *
+     * @param nsNode NS node of the zone.
+     * @return A potentially empty list of addresses of the zone's name servers.
+     */
+    private static List<InetAddress> getCachedServerAddresses(DNSNode nsNode) {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (ResourceRecord nameserver : cache.getCachedResults(nsNode))
+            for (ResourceRecord address : cache.getCachedResults(new DNSNode(nameserver.getTextResult(), RecordType.A)))
+                addresses.add(address.getInetResult());
+        return addresses;
+    }
+
+    /**
+     * Returns the NS node of the name one label below a zone on the way to a host name, i.e.,
+     * the potential zone cut that a server for the zone will refer to.
+     *
+     * @param hostName  Host name being looked up.
+     * @param zoneDepth Number of labels in the zone.
+     * @return The NS node of the potential zone cut, or null if the host name is the zone itself.
+     */
+    private static DNSNode getZoneCut(String hostName, int zoneDepth) {
+        String cut = hostName;
+        for (int extra = countLabels(hostName) - zoneDepth - 1; extra > 0; extra--)
+            cut = cut.substring(cut.indexOf('.') + 1);
+        return countLabels(hostName) > zoneDepth ? new DNSNode(cut, RecordType.NS) : null;
+    }
+
+    private static int countLabels(String name) {
+        int labels = 0;
+        boolean inLabel = false;
+        for (int i = 0; i < name.length(); i++) {
+            boolean dot = name.charAt(i) == '.';
+            if (!dot && !inLabel) labels++;
+            inLabel = !dot;
         }
+        return labels;
     }
 
-    public static int getRequestEndPosition(){
-        return offset;
+    /**
+     * Returns the socket used by the current thread to send queries, opening it on first use.
+     *
+     * @return The thread's socket.
+     */
+    private static DatagramSocket getSocket() {
+        DatagramSocket socket = sockets.get();
+        if (socket != null)
+            return socket;
+        try {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(5000);
+            openSockets.add(socket);
+            sockets.set(socket);
+            return socket;
+        } catch (SocketException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Creates a daemon thread for a worker pool. The thread closes its socket, if it opened one,
+     * when it ends, e.g., when an idle thread of the cached pool is discarded.
+     */
+    private static Thread newWorker(Runnable runnable, String name) {
+        Thread thread = new Thread(() -> {
+            try {
+                runnable.run();
+            } finally {
+                DatagramSocket socket = sockets.get();
+                if (socket != null) {
+                    sockets.remove();
+                    openSockets.remove(socket);
+                    socket.close();
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        return thread;
     }
 
     private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
@@ -366,6 +1167,11 @@ public class DNSLookupService {
                     record.getTextResult());
     }
 
+    private static int getTypeCode(ResourceRecord record) {
+        RecordData data = record.getRecordData();
+        return data != null ? data.getTypeCode() : record.getType().getCode();
+    }
+
     /**
      * Prints the result of a DNS query.
      *
@@ -373,31 +1179,118 @@ public class DNSLookupService {
      * @param results Set of results to be printed for the node.
      */
     private static void printResults(DNSNode node, Set<ResourceRecord> results) {
+        StringBuilder output = new StringBuilder();
+        appendResults(output, node, results);
+        System.out.print(output);
+    }
+
+    /**
+     * Prints the result of a DNS query that could not be sent because upstream servers were busy.
+     *
+     * @param node Host name and record type used for the query.
+     */
+    private static void printBusy(DNSNode node) {
+        StringBuilder output = new StringBuilder();
+        appendResultLine(output, node, -1, "busy");
+        System.out.print(output);
+    }
+
+    private static void appendResults(StringBuilder output, DNSNode node, Set<ResourceRecord> results) {
         if (results.isEmpty())
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
-                    node.getType(), -1, "0.0.0.0");
+            appendResultLine(output, node, -1, "0.0.0.0");
         for (ResourceRecord record : results) {
-            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
-                    node.getType(), record.getTTL(), record.getTextResult());
+            appendResultLine(output, node, record.getTTL(), record.getTextResult());
         }
     }
 
-    private static void printDNSResponse(DNSNode node, DNSResponse response, InetAddress server) {
+    /**
+     * Appends a single result line, equivalent to the format "%-30s %-5s %-8d %s\n", without
+     * parsing a format string for every line.
+     */
+    private static void appendResultLine(StringBuilder output, DNSNode node, long ttl, String result) {
+        appendPadded(output, node.getHostName(), 30).append(' ');
+        appendPadded(output, node.getType().name(), 5).append(' ');
+        appendPadded(output, Long.toString(ttl), 8).append(' ');
+        output.append(result).append('\n');
+    }
+
+    private static StringBuilder appendPadded(StringBuilder output, String value, int width) {
+        output.append(value);
+        for (int i = value.length(); i < width; i++)
+            output.append(' ');
+        return output;
+    }
+
+    /**
+     * Writes all results still cached, in the same format as lookup results, to the standard
+     * output or to a file. The cache is not locked while it is written, so lookups in other
+     * threads are not delayed by large dumps.
+     *
+     * @param suffix   Only names equal to or ending in this domain are written, or all names if null.
+     * @param type     Only records of this type are written, or all types if null.
+     * @param fileName File where the results are written, or null for the standard output.
+     */
+    private static void dumpCache(String suffix, RecordType type, String fileName) {
+        Predicate<DNSNode> filter = node -> (type == null || node.getType() == type) &&
+                (suffix == null || isInDomain(node.getHostName(), suffix));
+        cache.removeExpired();
+
+        try {
+            Writer out = fileName == null ? new OutputStreamWriter(System.out) : new FileWriter(fileName);
+            BufferedWriter writer = new BufferedWriter(out, 1 << 16);
+            StringBuilder line = new StringBuilder();
+            long[] count = {0};
+            try {
+                cache.forEachNode(filter, (node, results) -> {
+                    line.setLength(0);
+                    appendResults(line, node, results);
+                    count[0] += results.size();
+                    try {
+                        writer.append(line);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                writer.flush();
+            } finally {
+                // Closing the standard output would prevent further commands from being printed
+                if (fileName != null) writer.close();
+            }
+            if (fileName != null)
+                System.out.println(count[0] + " records written to " + fileName);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Cache dump failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns true if a host name is equal to a domain or is a subdomain of it. The comparison
+     * is case-insensitive and only matches whole labels.
+     */
+    private static boolean isInDomain(String hostName, String domain) {
+        if (domain.endsWith(".")) domain = domain.substring(0, domain.length() - 1);
+        int start = hostName.length() - domain.length();
+        if (start < 0 || !hostName.regionMatches(true, start, domain, 0, domain.length()))
+            return false;
+        return start == 0 || domain.isEmpty() || hostName.charAt(start - 1) == '.';
+    }
+
+    private static void printDNSResponse(DNSNode node, DNSResponse response, InetAddress server, short questionID) {
         boolean isAuthoritative = response.isAuthoritative();
 
         System.out.println("Query ID    " + questionID + " " + node.getHostName() + "  " + node.getType() + " --> " + server.getHostAddress());
         System.out.println("Respond ID: " + questionID + " Authoritative = " + isAuthoritative);
         ArrayList<ResourceRecord> answers = response.getAnswerRecords();
         System.out.println("  Answers (" + answers.size() + ")");
-        answers.forEach(answer -> verbosePrintResourceRecord(answer, answer.getType().getCode()));
+        answers.forEach(answer -> verbosePrintResourceRecord(answer, getTypeCode(answer)));
 
         ArrayList<ResourceRecord> nameServers = response.getNameServerRecords();
         System.out.println("  Nameservers (" + nameServers.size() + ")");
-        nameServers.forEach(nameServer -> verbosePrintResourceRecord(nameServer, nameServer.getType().getCode()));
+        nameServers.forEach(nameServer -> verbosePrintResourceRecord(nameServer, getTypeCode(nameServer)));
 
         ArrayList<ResourceRecord> addtionals = response.getAdditionalInfoRecords();
         System.out.println("  Additional Information (" + addtionals.size() + ")");
-        addtionals.forEach(additional -> verbosePrintResourceRecord(additional, additional.getType().getCode()));
+        addtionals.forEach(additional -> verbosePrintResourceRecord(additional, getTypeCode(additional)));
 
     }
 
@@ -4,19 +4,69 @@ import java.io.Serializable;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
  * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * type. Two nodes with the same host name and type are considered equal. Host names are
+ * compared case-insensitively, as specified for DNS.
+ *
+ * Internally, the host name is kept in DNS wire format, and the hash code is computed when the
+ * node is created, so nodes can be used as map keys without comparing strings. Nodes can also
+ * be created directly from a name inside a DNS message, in which case the host name is only
+ * converted to a string if it is requested.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
-    private String hostName;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    private transient String hostName;
     private RecordType type;
+    private byte[] wireName;
+    private int hash;
 
+    /** Creates a node from a host name in dotted form, with or without a trailing dot.
+     *
+     * @param hostName Host name of the node.
+     * @param type     Record type of the node.
+     * @throws IllegalArgumentException if the host name has an empty label, a label longer than
+     *                                  63 characters, more than 255 bytes in wire format, or a
+     *                                  character that is not ASCII (internationalized names must
+     *                                  be given in their xn-- form).
+     */
     public DNSNode(String hostName, RecordType type) {
         this.hostName = hostName;
         this.type = type;
+        this.wireName = encodeWireName(hostName);
+        this.hash = computeHash();
+    }
+
+    /** Creates a node with the same host name as another node, but a different record type. The
+     * wire-format name is shared between both nodes.
+     *
+     * @param node Node whose host name is used.
+     * @param type Record type of the new node.
+     */
+    public DNSNode(DNSNode node, RecordType type) {
+        this.hostName = node.hostName;
+        this.type = type;
+        this.wireName = node.wireName;
+        this.hash = computeHash();
+    }
+
+    /** Creates a node from a possibly compressed domain name in a DNS message. The name is copied
+     * into the node in uncompressed wire format; no string is created.
+     *
+     * @param message The DNS message containing the name.
+     * @param offset  Position of the first label of the name.
+     * @param type    Record type of the node.
+     */
+    public DNSNode(byte[] message, int offset, RecordType type) {
+        this.type = type;
+        this.wireName = decompress(message, offset);
+        this.hash = computeHash();
     }
 
     public String getHostName() {
+        if (hostName == null)
+            hostName = decodeWireName(wireName);
         return hostName;
     }
 
@@ -24,6 +74,109 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
         return type;
     }
 
+    /** Returns the host name of this node encoded in DNS wire format, i.e., as a sequence of
+     * length-prefixed labels terminated by a zero-length label. The encoding is computed once,
+     * so repeated queries for the same node do not need to encode the name again. The returned
+     * array must not be modified.
+     *
+     * @return The wire-format representation of the host name.
+     */
+    public byte[] getWireName() {
+        return wireName;
+    }
+
+    private static byte[] encodeWireName(String hostName) {
+        int length = hostName.length();
+        if (length > 0 && hostName.charAt(length - 1) == '.') length--;
+
+        // Each label gains a length byte in place of its dot, plus the terminating zero.
+        byte[] encoded = new byte[length == 0 ? 1 : length + 2];
+        if (encoded.length > MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("Host name too long: " + hostName);
+        int labelStart = 0, pos = 1;
+        for (int i = 0; i < length; i++) {
+            char c = hostName.charAt(i);
+            if (c == '.') {
+                setLabelLength(encoded, labelStart, pos, hostName);
+                labelStart = pos;
+            } else if (c > 0x7f) {
+                throw new IllegalArgumentException("Non-ASCII character in host name: " + hostName);
+            } else {
+                encoded[pos] = (byte) c;
+            }
+            pos++;
+        }
+        if (length > 0)
+            setLabelLength(encoded, labelStart, pos, hostName);
+        return encoded;
+    }
+
+    private static void setLabelLength(byte[] encoded, int labelStart, int labelEnd, String hostName) {
+        int labelLength = labelEnd - labelStart - 1;
+        if (labelLength == 0)
+            throw new IllegalArgumentException("Empty label in host name: " + hostName);
+        if (labelLength > MAX_LABEL_LENGTH)
+            throw new IllegalArgumentException("Label too long in host name: " + hostName);
+        encoded[labelStart] = (byte) labelLength;
+    }
+
+    private static String decodeWireName(byte[] wireName) {
+        if (wireName.length == 1)
+            return "";
+        char[] chars = new char[wireName.length - 2];
+        for (int pos = 0; wireName[pos] != 0; pos += wireName[pos] + 1) {
+            if (pos > 0) chars[pos - 1] = '.';
+            for (int i = 1; i <= wireName[pos]; i++)
+                chars[pos + i - 1] = (char) Byte.toUnsignedInt(wireName[pos + i]);
+        }
+        return new String(chars);
+    }
+
+    private static byte[] decompress(byte[] message, int offset) {
+        // First pass finds the length of the uncompressed name, the second one copies it.
+        int length = 0;
+        for (int pos = offset, pointers = 0; ; ) {
+            int count = Byte.toUnsignedInt(message[pos]);
+            if ((count & 0xc0) == 0xc0) {
+                if (++pointers > MAX_NAME_LENGTH)
+                    throw new IllegalStateException("Compression loop in domain name");
+                pos = ((count & 0x3f) << 8) | Byte.toUnsignedInt(message[pos + 1]);
+                continue;
+            }
+            if (count > MAX_LABEL_LENGTH)
+                throw new IllegalStateException("Invalid label in domain name");
+            length += count + 1;
+            if (length > MAX_NAME_LENGTH)
+                throw new IllegalStateException("Domain name too long");
+            if (count == 0) break;
+            pos += count + 1;
+        }
+
+        byte[] name = new byte[length];
+        for (int pos = offset, copied = 0; copied < length; ) {
+            int count = Byte.toUnsignedInt(message[pos]);
+            if ((count & 0xc0) == 0xc0) {
+                pos = ((count & 0x3f) << 8) | Byte.toUnsignedInt(message[pos + 1]);
+                continue;
+            }
+            System.arraycopy(message, pos, name, copied, count + 1);
+            copied += count + 1;
+            pos += count + 1;
+        }
+        return name;
+    }
+
+    private static int toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private int computeHash() {
+        int result = 0;
+        for (byte b : wireName)
+            result = 31 * result + toLowerCase(b);
+        return 31 * result + type.ordinal();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -31,27 +184,58 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
         DNSNode dnsNode = (DNSNode) o;
 
-        if (!hostName.equals(dnsNode.hostName)) return false;
-        return type == dnsNode.type;
+        if (hash != dnsNode.hash || type != dnsNode.type) return false;
+        if (wireName == dnsNode.wireName) return true;
+        if (wireName.length != dnsNode.wireName.length) return false;
+        for (int i = 0; i < wireName.length; i++)
+            if (toLowerCase(wireName[i]) != toLowerCase(dnsNode.wireName[i]))
+                return false;
+        return true;
     }
 
     @Override
     public int hashCode() {
-        int result = hostName.hashCode();
-        result = 31 * result + type.hashCode();
-        return result;
+        return hash;
     }
 
     @Override
     public String toString() {
-        return hostName + " (" + type + ")";
+        return getHostName() + " (" + type + ")";
     }
 
+    /** Nodes are ordered according to the canonical DNS name order (RFC 4034, section 6.1),
+     * i.e., comparing labels case-insensitively starting from the rightmost one, so names in
+     * the same zone are kept together. Nodes with the same name are ordered by type.
+     */
     @Override
     public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
-        else
-            return type.compareTo(o.type);
+        int[] labels = labelOffsets(wireName), otherLabels = labelOffsets(o.wireName);
+        int i = labels.length, j = otherLabels.length;
+        while (i > 0 && j > 0) {
+            int result = compareLabel(wireName, labels[--i], o.wireName, otherLabels[--j]);
+            if (result != 0) return result;
+        }
+        if (i != j)
+            return i - j;
+        return type.compareTo(o.type);
+    }
+
+    private static int[] labelOffsets(byte[] wireName) {
+        int count = 0;
+        for (int pos = 0; wireName[pos] != 0; pos += wireName[pos] + 1)
+            count++;
+        int[] offsets = new int[count];
+        for (int pos = 0, i = 0; wireName[pos] != 0; pos += wireName[pos] + 1)
+            offsets[i++] = pos;
+        return offsets;
+    }
+
+    private static int compareLabel(byte[] name, int pos, byte[] otherName, int otherPos) {
+        int length = name[pos], otherLength = otherName[otherPos];
+        for (int k = 1; k <= Math.min(length, otherLength); k++) {
+            int c = toLowerCase(name[pos + k]) & 0xff, d = toLowerCase(otherName[otherPos + k]) & 0xff;
+            if (c != d) return c - d;
+        }
+        return length - otherLength;
     }
 }
@@ -0,0 +1,84 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** This class encodes DNS queries into a request buffer that is reused for every query sent by
+ * the same thread. The question section is built from the wire-format name cached in the DNS
+ * node, and if the same node is encoded again (e.g., when a query is retransmitted or sent to an
+ * alternate server) only the query ID in the header is updated.
+ */
+public class DNSQueryEncoder {
+
+    private static final int MAX_REQUEST_SIZE = 512;
+    private static final int HEADER_SIZE = 12;
+
+    private static final ThreadLocal<DNSQueryEncoder> encoders =
+            ThreadLocal.withInitial(DNSQueryEncoder::new);
+
+    private final byte[] buffer = new byte[MAX_REQUEST_SIZE];
+    private DNSNode encodedNode;
+    private int length;
+
+    private DNSQueryEncoder() {
+        // QR, OPCODE, AA, TC, RD, RA, Z, RCODE = 0
+        buffer[2] = 0;
+        buffer[3] = 0;
+        // QDCOUNT = 1; ANCOUNT, NSCOUNT, ARCOUNT = 0
+        buffer[5] = 1;
+    }
+
+    /** Returns the encoder associated to the current thread.
+     *
+     * @return The request encoder for the calling thread.
+     */
+    public static DNSQueryEncoder get() {
+        return encoders.get();
+    }
+
+    /** Encodes a query for the specified node with the specified query ID. If the last query
+     * encoded by this encoder was for the same node, the question section is left untouched and
+     * only the query ID is replaced.
+     *
+     * @param node Host name and record type to be used for the query.
+     * @param queryID ID to be used in the query header.
+     * @return The length, in bytes, of the encoded request.
+     */
+    public int encode(DNSNode node, short queryID) {
+        setQueryID(queryID);
+        if (node.equals(encodedNode))
+            return length;
+
+        byte[] name = node.getWireName();
+        if (HEADER_SIZE + name.length + 4 > MAX_REQUEST_SIZE)
+            throw new IllegalArgumentException("Host name too long: " + node.getHostName());
+
+        System.arraycopy(name, 0, buffer, HEADER_SIZE, name.length);
+        int offset = HEADER_SIZE + name.length;
+        int qtype = node.getType().getCode();
+        buffer[offset] = (byte) (qtype >>> 8);
+        buffer[offset + 1] = (byte) qtype;
+        // QCLASS = INTERNET
+        buffer[offset + 2] = 0;
+        buffer[offset + 3] = 1;
+
+        length = offset + 4;
+        encodedNode = node;
+        return length;
+    }
+
+    /** Replaces the query ID of the currently encoded request.
+     *
+     * @param queryID ID to be used in the query header.
+     */
+    public void setQueryID(short queryID) {
+        buffer[0] = (byte) (queryID >>> 8);
+        buffer[1] = (byte) queryID;
+    }
+
+    /** Returns the buffer containing the encoded request. Only the number of bytes returned by
+     * encode are part of the request. The buffer is overwritten by the next call to encode.
+     *
+     * @return The request buffer.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+}
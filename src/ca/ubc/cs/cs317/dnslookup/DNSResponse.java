@@ -1,14 +1,9 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.io.UnsupportedEncodingException;
-import java.net.Inet6Address;
-import java.net.InetAddress;
 import java.net.InterfaceAddress;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -20,13 +15,12 @@ public class DNSResponse {
     private int ANCOUNT;
     private int NSCOUNT;
     private int ARCOUNT;
-    private DNSNode node;
     private byte[] response;
     ByteBuffer buffer;
     private int offset;
-    private int pointerOffset;
-    private boolean isBeginning;
     private boolean isAuthoritative;
+    private int responseCode;
+    private boolean cacheRecords = true;
 
     private static DNSCache cache = DNSCache.getInstance();
 
@@ -35,24 +29,36 @@ public class DNSResponse {
     private ArrayList<ResourceRecord> additionalInfoRecords = new ArrayList<ResourceRecord>();
 
 
-    public DNSResponse(DNSNode node, byte[] response) {
+    public DNSResponse(byte[] response) {
 
         buffer = ByteBuffer.allocate(response.length).put(response);
 
-        this.node = node;
         this.response = response;
 
     }
 
     public void decodeResponse(short queryID) {
+        decodeResponse(queryID, true);
+    }
+
+    /**
+     * Decodes the response, optionally without adding its records to the cache (e.g., to measure
+     * decoding alone, or to decode responses that are not current).
+     *
+     * @param queryID      ID of the query the response is expected to answer.
+     * @param cacheRecords If true, every decoded record is added to the cache.
+     */
+    public void decodeResponse(short queryID, boolean cacheRecords) {
 
+        this.cacheRecords = cacheRecords;
         decodeHeader(queryID);
-        offset = DNSLookupService.getRequestEndPosition();
+        // Skip the question section (name, QTYPE and QCLASS) as found in the response itself
+        offset = RecordData.skipName(response, 12) + 4;
 
         for (int i = 0; i < ANCOUNT; i++) {
             ResourceRecord record = getRecord();
             RecordType type = record.getType();
-            if (type == RecordType.A || type == RecordType.AAAA || type == RecordType.CNAME) {
+            if (type != RecordType.OTHER) {
                 answerRecords.add(record);
             }
 
@@ -87,6 +93,7 @@ public class DNSResponse {
         ANCOUNT = (int) buffer.getShort(6);
         NSCOUNT = (int) buffer.getShort(8);
         ARCOUNT = (int) buffer.getShort(10);
+        responseCode = buffer.get(3) & 0xf;
         checkAA();
     }
 
@@ -106,24 +113,14 @@ public class DNSResponse {
 
 
     private ResourceRecord getRecord() {
-        //
-        int labelTag = Byte.toUnsignedInt(buffer.get(offset)) >>> 6;
-        // this is to grab all the domain name in the packet
-        String hostName = node.getHostName();
-        if (labelTag == 3 ) {
-            // NAME is a pointer
-            getPointer(offset);
-            isBeginning = true;
-            hostName = getDomainName(pointerOffset);
-            offset += 2;
-        } else {
-            isBeginning = true;
-            getDomainName(offset);
-            findNewOffset();
+        // NAME may be a pointer, a sequence of labels, or labels followed by a pointer
+        int nameOffset = offset;
+        offset = RecordData.skipName(response, offset);
 
-        }
         int type = Short.toUnsignedInt(buffer.getShort(offset));
         RecordType TYPE = RecordType.getByCode(type);
+        // The owner name is kept in wire format, so no string is created for it
+        DNSNode owner = new DNSNode(response, nameOffset, TYPE);
         // Grab the Time to Live from the packet
         int ttl = (Byte.toUnsignedInt(buffer.get(offset + 4)) << 24)
                 + (Byte.toUnsignedInt(buffer.get(offset + 5)) << 16)
@@ -139,64 +136,29 @@ public class DNSResponse {
         ResourceRecord newRecord;
 
 
-        if (TYPE == RecordType.A) {
-
-            byte[] RDATA = Arrays.copyOfRange(response, offset, offset + RDLENGTH);
-            InetAddress IP = resolveIPV4Result(RDATA);
-            newRecord = new ResourceRecord(hostName, TYPE, TTL, IP);
-
-            // Check for NS and CNAME
+        if (TYPE == RecordType.A && RDLENGTH == 4) {
 
-        } else if (TYPE == RecordType.NS || TYPE == RecordType.CNAME) {
-            isBeginning = true;
-            String result = getDomainName(offset);
-            newRecord = new ResourceRecord(hostName, TYPE, TTL, result);
+            newRecord = new ResourceRecord(owner, TTL, buffer.getInt(offset));
 
             // check for IPv6
 
-        } else if (TYPE == RecordType.AAAA) {
-            byte[] RDATA = Arrays.copyOfRange(response, offset, offset + RDLENGTH);
-            InetAddress IP = resolveIPV6Result(hostName, RDATA);
-            newRecord = new ResourceRecord(hostName, TYPE, TTL, IP);
+        } else if (TYPE == RecordType.AAAA && RDLENGTH == 16) {
+            newRecord = new ResourceRecord(owner, TTL, buffer.getLong(offset), buffer.getLong(offset + 8));
+
+            // Everything else keeps its RDATA undecoded until it is needed
 
         } else {
-            newRecord = new ResourceRecord(hostName, TYPE, TTL, "");
+            RecordData RDATA = new RecordData(TYPE, type, response, offset, RDLENGTH);
+            newRecord = new ResourceRecord(owner, TTL, RDATA);
         }
         // This is when we know we are near the end of the packet and add to cache
         // We know its the end once we hit RDLENGTH
         offset = offset + RDLENGTH;
-        cache.addResult(newRecord);
+        if (cacheRecords)
+            cache.addResult(newRecord);
         return newRecord;
     }
 
-    private static InetAddress resolveIPV4Result(byte[] data) {
-
-        InetAddress address = null;
-        try {
-            address = InetAddress.getByAddress(data);
-
-        } catch (UnknownHostException e) {
-            System.err.println("Invalid IP Address: " + e.getMessage());
-        }
-        return address;
-
-    }
-
-
-    private static InetAddress resolveIPV6Result(String host, byte[] data) {
-
-        InetAddress address = null;
-        try {
-            address = Inet6Address.getByAddress(host, data);
-
-        } catch (UnknownHostException e) {
-            System.err.println("Invalid IP Address: " + e.getMessage());
-        }
-        return address;
-
-    }
-
-
     public ArrayList<ResourceRecord> getAnswerRecords() {
         return answerRecords;
     }
@@ -213,60 +175,10 @@ public class DNSResponse {
         return isAuthoritative;
     }
 
-
-    private String getDomainName(int ptr) {
-        // Grab domain name
-        String domainName = "";
-
-        while (response[ptr] != 0) {
-            if (response[ptr] < 0) {
-                getPointer(ptr);
-                return domainName + getDomainName(pointerOffset);
-            }
-            if (!isBeginning) domainName = domainName + ".";
-            int count = Byte.toUnsignedInt(response[ptr]);
-            ptr++;
-            byte[] name = Arrays.copyOfRange(response, ptr, ptr + count);
-            domainName = domainName + byteToAcsii(name);
-            ptr += count;
-            isBeginning = false;
-        }
-
-        return domainName;
-
-    }
-
-
-    private static String byteToAcsii(byte[] buffer) {
-
-        String ascii = "";
-        try {
-            ascii = new String(buffer, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            System.err.println(e.getMessage());
-        }
-        return ascii;
-    }
-
-    private void getPointer(int index) {
-
-        int ptr = Short.toUnsignedInt(buffer.getShort(index));
-        pointerOffset = ptr ^ 0xc000;
-
-    }
-
-
-    private void findNewOffset() {
-        while (response[offset] != 0 && response[offset] > 0){
-            offset++;
-        }
-        if (response[offset] == 0){
-            offset++;
-        } else {
-            offset+=2;
-        }
+    /** @return The RCODE of the response, e.g., 0 (no error), 2 (server failure) or 3 (name error). */
+    public int getResponseCode() {
+        return responseCode;
     }
 
 
 }
-
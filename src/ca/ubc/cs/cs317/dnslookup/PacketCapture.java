@@ -0,0 +1,194 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/** This class records the raw datagrams exchanged with upstream servers to a capture file, and
+ * reads them back as query/response exchanges that can be replayed without the network.
+ *
+ * A capture file starts with an 8-byte signature, followed by one entry per datagram. Each
+ * entry contains the direction (query sent or response received), the time in microseconds
+ * since the epoch, the address of the server, and the datagram itself:
+ *
+ *     direction (1) | time (8) | address length (1) | address (4 or 16) | length (2) | datagram
+ *
+ * Files are only ever appended to, so several capture sessions may be recorded to the same
+ * file. Entries are buffered and written to disk when the capture is closed.
+ */
+public class PacketCapture implements Closeable {
+
+    private static final byte[] SIGNATURE = {'D', 'N', 'S', 'C', 'A', 'P', 0, 1};
+    private static final byte QUERY = 0;
+    private static final byte RESPONSE = 1;
+
+    private final DataOutputStream out;
+    private final long startMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    private final long startNanos = System.nanoTime();
+    private long count;
+    private IOException failure;
+
+    /** A query sent to a server, and the response received for it, if any. */
+    public static class Exchange {
+        private final InetAddress server;
+        private final byte[] query;
+        private final long sentMicros;
+        private byte[] response;
+        private long receivedMicros;
+
+        private Exchange(InetAddress server, byte[] query, long sentMicros) {
+            this.server = server;
+            this.query = query;
+            this.sentMicros = sentMicros;
+        }
+
+        public InetAddress getServer() {
+            return server;
+        }
+
+        public byte[] getQuery() {
+            return query;
+        }
+
+        /** @return The response datagram, or null if the server did not respond. */
+        public byte[] getResponse() {
+            return response;
+        }
+
+        /** @return Time taken by the server to respond, in microseconds, or -1 if it did not respond. */
+        public long getResponseTime() {
+            return response == null ? -1 : receivedMicros - sentMicros;
+        }
+    }
+
+    /** Opens a capture file, creating it if it does not exist. New datagrams are appended after
+     * any existing content.
+     *
+     * @param file Capture file.
+     * @throws IOException if the file cannot be opened, or exists but is not a capture file.
+     */
+    public PacketCapture(File file) throws IOException {
+        if (file.length() > 0) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                readSignature(in);
+            }
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (file.length() == 0)
+            out.write(SIGNATURE);
+    }
+
+    /** Records a query sent to a server.
+     *
+     * @param server Address of the server.
+     * @param data   Buffer containing the query.
+     * @param length Length of the query, in bytes.
+     */
+    public void recordQuery(InetAddress server, byte[] data, int length) {
+        record(QUERY, server, data, length);
+    }
+
+    /** Records a response received from a server.
+     *
+     * @param server Address of the server.
+     * @param data   Buffer containing the response.
+     * @param length Length of the response, in bytes.
+     */
+    public void recordResponse(InetAddress server, byte[] data, int length) {
+        record(RESPONSE, server, data, length);
+    }
+
+    private synchronized void record(byte direction, InetAddress server, byte[] data, int length) {
+        if (failure != null) return;
+        long micros = startMicros + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        byte[] address = server.getAddress();
+        try {
+            out.writeByte(direction);
+            out.writeLong(micros);
+            out.writeByte(address.length);
+            out.write(address);
+            out.writeShort(length);
+            out.write(data, 0, length);
+            count++;
+        } catch (IOException e) {
+            // Capturing must not interfere with lookups; the error is reported when the capture is closed
+            failure = e;
+        }
+    }
+
+    /** @return The number of datagrams recorded so far. */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+        if (failure != null)
+            throw failure;
+    }
+
+    /** Reads all exchanges recorded in a capture file. Each response is matched to the latest
+     * query sent to the same server with the same query ID. Queries without a matching response
+     * are returned as exchanges without a response, and responses without a matching query are
+     * ignored.
+     *
+     * @param file Capture file.
+     * @return The exchanges, in the order the queries were sent.
+     * @throws IOException if the file cannot be read or is not a valid capture file.
+     */
+    public static List<Exchange> read(File file) throws IOException {
+        List<Exchange> exchanges = new ArrayList<>();
+        Map<String, Exchange> pending = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            readSignature(in);
+            int direction;
+            while ((direction = in.read()) >= 0) {
+                long micros = in.readLong();
+                byte[] address = new byte[in.readUnsignedByte()];
+                in.readFully(address);
+                byte[] data = new byte[in.readUnsignedShort()];
+                in.readFully(data);
+                if (data.length < 2)
+                    continue;
+
+                InetAddress server;
+                try {
+                    server = InetAddress.getByAddress(address);
+                } catch (UnknownHostException e) {
+                    throw new IOException("Invalid server address in capture file");
+                }
+                String key = server.getHostAddress() + "#" + (((data[0] & 0xff) << 8) | (data[1] & 0xff));
+                if (direction == QUERY) {
+                    Exchange exchange = new Exchange(server, data, micros);
+                    exchanges.add(exchange);
+                    pending.put(key, exchange);
+                } else if (direction == RESPONSE) {
+                    Exchange exchange = pending.remove(key);
+                    if (exchange != null) {
+                        exchange.response = data;
+                        exchange.receivedMicros = micros;
+                    }
+                } else {
+                    throw new IOException("Invalid entry in capture file");
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Capture file is truncated");
+        }
+        return exchanges;
+    }
+
+    private static void readSignature(DataInputStream in) throws IOException {
+        byte[] signature = new byte[SIGNATURE.length];
+        try {
+            in.readFully(signature);
+        } catch (EOFException e) {
+            throw new IOException("Not a capture file");
+        }
+        if (!Arrays.equals(signature, SIGNATURE))
+            throw new IOException("Not a capture file");
+    }
+}
@@ -0,0 +1,370 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/** The RDATA section of a resource record, kept as a slice of the DNS message it was received
+ * in. Nothing is decoded when the record is parsed; typed fields are only read from the message
+ * when the corresponding accessor is called. The full message is kept (and not just the slice)
+ * since domain names inside RDATA may be compressed with pointers to other parts of the message.
+ *
+ * Accessors are only valid for the record type they correspond to (e.g., getExchange() can only
+ * be called on MX records), and throw an IllegalStateException otherwise.
+ */
+public class RecordData implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_POINTERS = 64;
+
+    private RecordType type;
+    private int typeCode;
+    private byte[] message;
+    private int offset;
+    private int length;
+
+    public RecordData(RecordType type, int typeCode, byte[] message, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > message.length)
+            throw new IllegalArgumentException("RDATA extends beyond the end of the message");
+        this.type = type;
+        this.typeCode = typeCode;
+        this.message = message;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public RecordType getType() {
+        return type;
+    }
+
+    /** The numeric record type, as found in the message. This may be used to identify the
+     * original type of records whose type is OTHER.
+     *
+     * @return The record type code.
+     */
+    public int getTypeCode() {
+        return typeCode;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /** Returns a copy of the raw RDATA bytes.
+     *
+     * @return The undecoded RDATA of the record.
+     */
+    public byte[] getBytes() {
+        byte[] copy = new byte[length];
+        System.arraycopy(message, offset, copy, 0, length);
+        return copy;
+    }
+
+    /** Returns a copy of the RDATA with any compressed domain names expanded, so that it can be
+     * used outside of the message it was received in (e.g., sent to another resolver).
+     *
+     * @return The RDATA of the record, without compression pointers.
+     */
+    public byte[] getUncompressedBytes() {
+        switch (type) {
+            case NS:
+            case CNAME:
+            case PTR:
+                return expandNames(0, 1);
+            case MX:
+                return expandNames(2, 1);
+            case SRV:
+                return expandNames(6, 1);
+            case SOA:
+                return expandNames(0, 2);
+            default:
+                return getBytes();
+        }
+    }
+
+    /** Copies the RDATA, expanding the names that start after a fixed-size prefix. Any bytes
+     * following the names are copied unchanged.
+     */
+    private byte[] expandNames(int prefix, int names) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + 64);
+        bytes.write(message, offset, prefix);
+        int pos = offset + prefix;
+        for (int i = 0; i < names; i++) {
+            byte[] name = new DNSNode(message, pos, type).getWireName();
+            bytes.write(name, 0, name.length);
+            pos = skipName(message, pos);
+        }
+        bytes.write(message, pos, offset + length - pos);
+        return bytes.toByteArray();
+    }
+
+    /** Returns the domain name contained in an NS, CNAME or PTR record.
+     *
+     * @return The name server, canonical name or pointer target of the record.
+     */
+    public String getName() {
+        checkType(RecordType.NS, RecordType.CNAME, RecordType.PTR);
+        return readName(message, offset);
+    }
+
+    /** @return The preference of an MX record. Lower values are preferred. */
+    public int getPreference() {
+        checkType(RecordType.MX);
+        return readUnsignedShort(0);
+    }
+
+    /** @return The mail exchange host name of an MX record. */
+    public String getExchange() {
+        checkType(RecordType.MX);
+        return readName(message, offset + 2);
+    }
+
+    /** @return The primary name server (MNAME) of an SOA record. */
+    public String getPrimaryNameServer() {
+        checkType(RecordType.SOA);
+        return readName(message, offset);
+    }
+
+    /** @return The mailbox of the person responsible for the zone (RNAME) of an SOA record. */
+    public String getResponsibleMailbox() {
+        checkType(RecordType.SOA);
+        return readName(message, skipName(message, offset));
+    }
+
+    /** @return The zone serial number of an SOA record. */
+    public long getSerial() {
+        return readSOATimer(0);
+    }
+
+    /** @return The refresh interval, in seconds, of an SOA record. */
+    public long getRefresh() {
+        return readSOATimer(1);
+    }
+
+    /** @return The retry interval, in seconds, of an SOA record. */
+    public long getRetry() {
+        return readSOATimer(2);
+    }
+
+    /** @return The expire limit, in seconds, of an SOA record. */
+    public long getExpire() {
+        return readSOATimer(3);
+    }
+
+    /** @return The minimum (negative caching) TTL, in seconds, of an SOA record. */
+    public long getMinimum() {
+        return readSOATimer(4);
+    }
+
+    /** Returns the character strings contained in a TXT record, in the order they appear.
+     *
+     * @return List of the strings in the record.
+     */
+    public List<String> getStrings() {
+        checkType(RecordType.TXT);
+        List<String> strings = new ArrayList<>();
+        int pos = offset, end = offset + length;
+        while (pos < end) {
+            int count = Byte.toUnsignedInt(message[pos++]);
+            if (pos + count > end)
+                throw new IllegalStateException("TXT string extends beyond the end of the record");
+            strings.add(readChars(pos, count));
+            pos += count;
+        }
+        return strings;
+    }
+
+    /** @return The priority of an SRV record. Lower values are preferred. */
+    public int getPriority() {
+        checkType(RecordType.SRV);
+        return readUnsignedShort(0);
+    }
+
+    /** @return The weight of an SRV record, used among targets with the same priority. */
+    public int getWeight() {
+        checkType(RecordType.SRV);
+        return readUnsignedShort(2);
+    }
+
+    /** @return The port of the service described by an SRV record. */
+    public int getPort() {
+        checkType(RecordType.SRV);
+        return readUnsignedShort(4);
+    }
+
+    /** @return The target host name of an SRV record. */
+    public String getTarget() {
+        checkType(RecordType.SRV);
+        return readName(message, offset + 6);
+    }
+
+    /** Returns the textual (presentation) form of the record data. Names are printed without
+     * a trailing dot, consistent with the rest of the application. Unknown record types are
+     * printed in the generic format of RFC 3597.
+     *
+     * @return The textual form of the record data.
+     */
+    @Override
+    public String toString() {
+        switch (type) {
+            case NS:
+            case CNAME:
+            case PTR:
+                return getName();
+            case MX:
+                return getPreference() + " " + getExchange();
+            case SOA:
+                return getPrimaryNameServer() + " " + getResponsibleMailbox() + " " + getSerial() + " "
+                        + getRefresh() + " " + getRetry() + " " + getExpire() + " " + getMinimum();
+            case TXT:
+                StringBuilder txt = new StringBuilder();
+                for (String string : getStrings()) {
+                    if (txt.length() > 0) txt.append(' ');
+                    txt.append('"').append(string.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+                }
+                return txt.toString();
+            case SRV:
+                return getPriority() + " " + getWeight() + " " + getPort() + " " + getTarget();
+            default:
+                StringBuilder hex = new StringBuilder("\\# ").append(length);
+                if (length > 0) hex.append(' ');
+                for (int i = 0; i < length; i++)
+                    hex.append(String.format("%02x", message[offset + i]));
+                return hex.toString();
+        }
+    }
+
+    /** Two record data objects are equal if they have the same type and textual form. Names
+     * are thus compared after decompression, regardless of how they are encoded in the message.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        RecordData data = (RecordData) o;
+
+        if (type != data.type) return false;
+        return toString().equals(data.toString());
+    }
+
+    /** Computes the hash code directly from the message, following compression pointers, so
+     * that records can be stored in a hash-based collection without being decoded. For NS,
+     * CNAME and PTR records the result is the same as the hash code of the name as a string.
+     */
+    @Override
+    public int hashCode() {
+        switch (type) {
+            case NS:
+            case CNAME:
+            case PTR:
+                return hashName(offset, 0);
+            case MX:
+                return hashName(offset + 2, hashBytes(offset, Math.min(2, length), 0));
+            case SRV:
+                return hashName(offset + 6, hashBytes(offset, Math.min(6, length), 0));
+            case SOA:
+                int rname = skipName(message, offset);
+                int timers = skipName(message, rname);
+                return hashBytes(timers, offset + length - timers, hashName(rname, hashName(offset, 0)));
+            default:
+                return hashBytes(offset, length, 0);
+        }
+    }
+
+    private int hashName(int pos, int hash) {
+        boolean first = true;
+        int pointers = 0;
+        while (true) {
+            int count = Byte.toUnsignedInt(message[pos]);
+            if (count == 0)
+                return hash;
+            if ((count & 0xc0) == 0xc0) {
+                if (++pointers > MAX_POINTERS)
+                    return hash;
+                pos = ((count & 0x3f) << 8) | Byte.toUnsignedInt(message[pos + 1]);
+                continue;
+            }
+            if (!first) hash = 31 * hash + '.';
+            hash = hashBytes(pos + 1, count, hash);
+            pos += count + 1;
+            first = false;
+        }
+    }
+
+    private int hashBytes(int pos, int count, int hash) {
+        for (int i = 0; i < count; i++)
+            hash = 31 * hash + Byte.toUnsignedInt(message[pos + i]);
+        return hash;
+    }
+
+    /** Reads a possibly compressed domain name from a DNS message.
+     *
+     * @param message The DNS message containing the name.
+     * @param pos     Position of the first label of the name.
+     * @return The domain name, without a trailing dot. The root name is returned as "".
+     */
+    public static String readName(byte[] message, int pos) {
+        StringBuilder name = new StringBuilder();
+        int pointers = 0;
+        while (true) {
+            int count = Byte.toUnsignedInt(message[pos]);
+            if (count == 0)
+                return name.toString();
+            if ((count & 0xc0) == 0xc0) {
+                if (++pointers > MAX_POINTERS)
+                    throw new IllegalStateException("Compression loop in domain name");
+                pos = ((count & 0x3f) << 8) | Byte.toUnsignedInt(message[pos + 1]);
+                continue;
+            }
+            if (name.length() > 0) name.append('.');
+            for (int i = 1; i <= count; i++)
+                name.append((char) Byte.toUnsignedInt(message[pos + i]));
+            pos += count + 1;
+        }
+    }
+
+    /** Returns the position immediately after a possibly compressed domain name.
+     *
+     * @param message The DNS message containing the name.
+     * @param pos     Position of the first label of the name.
+     * @return The position of the first byte following the name.
+     */
+    public static int skipName(byte[] message, int pos) {
+        while (true) {
+            int count = Byte.toUnsignedInt(message[pos]);
+            if (count == 0)
+                return pos + 1;
+            if ((count & 0xc0) == 0xc0)
+                return pos + 2;
+            pos += count + 1;
+        }
+    }
+
+    private long readSOATimer(int index) {
+        checkType(RecordType.SOA);
+        int pos = skipName(message, skipName(message, offset)) + 4 * index;
+        return ((long) readUnsignedShort(pos - offset) << 16) | readUnsignedShort(pos - offset + 2);
+    }
+
+    private int readUnsignedShort(int relative) {
+        if (relative + 2 > length)
+            throw new IllegalStateException("Field extends beyond the end of the record");
+        return (Byte.toUnsignedInt(message[offset + relative]) << 8)
+                | Byte.toUnsignedInt(message[offset + relative + 1]);
+    }
+
+    private String readChars(int pos, int count) {
+        char[] chars = new char[count];
+        for (int i = 0; i < count; i++)
+            chars[i] = (char) Byte.toUnsignedInt(message[pos + i]);
+        return new String(chars);
+    }
+
+    private void checkType(RecordType... expected) {
+        for (RecordType t : expected)
+            if (t == type) return;
+        throw new IllegalStateException("Field not available for " + type + " records");
+    }
+}
@@ -0,0 +1,271 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A fake upstream that answers queries with the responses recorded in a capture file, so that
+ * lookups can be resolved without the network. Every server found in the capture is simulated
+ * by its own UDP socket on the loopback interface, and queries sent to a socket are answered
+ * with the responses that server gave to the same question, in the order they were recorded.
+ * Queries for servers that are not in the capture are answered with the response any server
+ * gave to the question.
+ *
+ * Since concurrent lookups share delegations, the name that a server was asked about when the
+ * traffic was captured is not necessarily the one it is asked about when it is replayed. A
+ * question without a recorded response is thus answered with a referral recorded from the same
+ * server to a zone containing the name, if there is one. Other questions are not answered, so
+ * the resolver sees the same timeouts it would see with a server that does not respond.
+ *
+ * Responses may be sent immediately, or paced, i.e., delayed by the time the server took to
+ * respond when the traffic was captured.
+ */
+public class ReplayServer implements Closeable {
+
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+
+    private final boolean paced;
+    private final Map<InetAddress, Recorded> serverResponses = new HashMap<>();
+    private final Recorded anyServerResponses = new Recorded();
+    private final Map<InetAddress, InetSocketAddress> serverAddresses = new HashMap<>();
+    private InetSocketAddress anyServerAddress;
+
+    private final Selector selector;
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "replay-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong answered = new AtomicLong();
+    private final AtomicLong unanswered = new AtomicLong();
+
+    /** Recorded responses to one question, used in turn. Only accessed by the receiving thread. */
+    private static class Responses {
+        private final List<PacketCapture.Exchange> exchanges = new ArrayList<>();
+        private int next;
+
+        private PacketCapture.Exchange next() {
+            PacketCapture.Exchange exchange = exchanges.get(next);
+            next = (next + 1) % exchanges.size();
+            return exchange;
+        }
+    }
+
+    /** Responses recorded from a server, by question, and its referrals, by zone cut. */
+    private static class Recorded {
+        private final Map<String, Responses> responses = new HashMap<>();
+        private final Map<DNSNode, PacketCapture.Exchange> referrals = new HashMap<>();
+
+        private void add(String question, PacketCapture.Exchange exchange) {
+            responses.computeIfAbsent(question, key -> new Responses()).exchanges.add(exchange);
+            DNSNode cut = getReferralCut(exchange.getResponse());
+            if (cut != null)
+                referrals.putIfAbsent(cut, exchange);
+        }
+    }
+
+    /** Creates a replay server and starts answering queries.
+     *
+     * @param exchanges Exchanges read from a capture file.
+     * @param paced     If true, responses are delayed by the recorded response time.
+     * @throws IOException if the sockets cannot be opened.
+     */
+    public ReplayServer(List<PacketCapture.Exchange> exchanges, boolean paced) throws IOException {
+        this.paced = paced;
+        for (PacketCapture.Exchange exchange : exchanges) {
+            String question = getQuestion(exchange.getQuery());
+            if (question == null) continue;
+            serverResponses.computeIfAbsent(exchange.getServer(), server -> new Recorded()).add(question, exchange);
+            if (exchange.getResponse() != null)
+                anyServerResponses.add(question, exchange);
+        }
+
+        selector = Selector.open();
+        try {
+            for (InetAddress server : serverResponses.keySet())
+                serverAddresses.put(server, openChannel(serverResponses.get(server)));
+            anyServerAddress = openChannel(anyServerResponses);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        Thread receiver = new Thread(this::receive, "replay-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    private InetSocketAddress openChannel(Recorded responses) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channels.add(channel);
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, responses);
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /** Returns the local address that simulates a server. Servers that are not in the capture
+     * are all simulated by the same address.
+     *
+     * @param server Address of the upstream server.
+     * @return The loopback address and port to which queries for the server should be sent.
+     */
+    public InetSocketAddress getAddress(InetAddress server) {
+        return serverAddresses.getOrDefault(server, anyServerAddress);
+    }
+
+    /** @return The number of servers found in the capture. */
+    public int getServerCount() {
+        return serverAddresses.size();
+    }
+
+    /** @return The number of queries answered with a recorded response. */
+    public long getAnsweredCount() {
+        return answered.get();
+    }
+
+    /** @return The number of queries for which no response was recorded. */
+    public long getUnansweredCount() {
+        return unanswered.get();
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext(); ) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    buffer.clear();
+                    SocketAddress client = channel.receive(buffer);
+                    if (client == null) continue;
+                    try {
+                        answer(channel, client, Arrays.copyOf(buffer.array(), buffer.position()),
+                                (Recorded) key.attachment());
+                    } catch (RejectedExecutionException e) {
+                        throw e;
+                    } catch (RuntimeException e) {
+                        // Malformed query, which a real server would not answer either
+                        unanswered.incrementAndGet();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException | RejectedExecutionException e) {
+            // The server was closed
+        }
+    }
+
+    private void answer(DatagramChannel channel, SocketAddress client, byte[] query, Recorded recorded) {
+        String question = getQuestion(query);
+        if (question == null) {
+            unanswered.incrementAndGet();
+            return;
+        }
+        Responses responses = recorded.responses.get(question);
+        PacketCapture.Exchange exchange = responses == null ? findReferral(query, recorded) : responses.next();
+        if (exchange == null || exchange.getResponse() == null) {
+            unanswered.incrementAndGet();
+            return;
+        }
+
+        // The recorded response is sent with the ID of the query being answered
+        byte[] response = exchange.getResponse().clone();
+        response[0] = query[0];
+        response[1] = query[1];
+        answered.incrementAndGet();
+        Runnable send = () -> {
+            try {
+                channel.send(ByteBuffer.wrap(response), client);
+            } catch (IOException e) {
+                // The server was closed, or the client is gone; either way nobody is waiting
+            }
+        };
+        if (paced)
+            sender.schedule(send, exchange.getResponseTime(), TimeUnit.MICROSECONDS);
+        else
+            sender.execute(send);
+    }
+
+    private static PacketCapture.Exchange findReferral(byte[] query, Recorded recorded) {
+        String zone = new DNSNode(query, 12, RecordType.NS).getHostName();
+        while (!zone.isEmpty()) {
+            PacketCapture.Exchange referral = recorded.referrals.get(new DNSNode(zone, RecordType.NS));
+            if (referral != null)
+                return referral;
+            int dot = zone.indexOf('.');
+            zone = dot < 0 ? "" : zone.substring(dot + 1);
+        }
+        return null;
+    }
+
+    /** Returns the zone cut that a response refers to, i.e., the owner of the NS records in a
+     * non-authoritative response without answers.
+     *
+     * @param response Response datagram, possibly null.
+     * @return The NS node of the zone cut, or null if the response is not a referral.
+     */
+    private static DNSNode getReferralCut(byte[] response) {
+        if (response == null || response.length < 12)
+            return null;
+        boolean authoritative = (response[2] & 0x04) != 0;
+        int answers = ((response[6] & 0xff) << 8) | (response[7] & 0xff);
+        int nameServers = ((response[8] & 0xff) << 8) | (response[9] & 0xff);
+        if (authoritative || answers != 0 || nameServers == 0)
+            return null;
+        try {
+            int owner = RecordData.skipName(response, 12) + 4;
+            int type = RecordData.skipName(response, owner);
+            if (((response[type] & 0xff) << 8 | (response[type + 1] & 0xff)) != RecordType.NS.getCode())
+                return null;
+            return new DNSNode(response, owner, RecordType.NS);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Returns the question section of a query, with the host name in lower case, to be used
+     * as a key to find the responses for the query.
+     *
+     * @param query Query datagram.
+     * @return The question, or null if the query is not valid.
+     */
+    private static String getQuestion(byte[] query) {
+        try {
+            int nameEnd = RecordData.skipName(query, 12);
+            if (nameEnd + 4 > query.length)
+                return null;
+            char[] question = new char[nameEnd + 4 - 12];
+            for (int i = 0; i < question.length; i++) {
+                char c = (char) Byte.toUnsignedInt(query[12 + i]);
+                question[i] = 12 + i < nameEnd && c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+            }
+            return new String(question);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sender.shutdownNow();
+        selector.close();
+        for (DatagramChannel channel : channels)
+            channel.close();
+    }
+}
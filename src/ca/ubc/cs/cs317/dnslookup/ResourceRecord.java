@@ -1,33 +1,83 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
+import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.util.Date;
+import java.net.UnknownHostException;
+import java.util.Objects;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
  * and is represented by an expiration time calculated as a delta from the current time.
+ *
+ * IP addresses are stored in primitive form (an int for IPv4, two longs for IPv6), and the
+ * expiration time is a monotonic timestamp based on System.nanoTime(). The textual and
+ * InetAddress forms of an address are only created when requested. Other records keep their
+ * undecoded RDATA, whose typed fields are available through getRecordData(), and are compared
+ * by their RDATA, so their textual form is not needed to store them in a hash-based collection.
  */
 public class ResourceRecord implements Serializable {
 
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
     private DNSNode node;
-    private Date expirationTime;
+    private long expirationTime;
+    private byte addressLength;
+    private long addressHigh;
+    private long addressLow;
     private String textResult;
-    private InetAddress inetResult;
-
-    public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
-        this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
-        this.textResult = result;
-        this.inetResult = null;
-    }
+    private transient InetAddress inetResult;
+    private RecordData recordData;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
+        this(new DNSNode(hostName, type), ttl);
+        byte[] address = result.getAddress();
+        this.addressLength = (byte) address.length;
+        for (int i = 0; i < address.length; i++) {
+            if (i < 8)
+                addressHigh = (addressHigh << 8) | (address[i] & 0xff);
+            else
+                addressLow = (addressLow << 8) | (address[i] & 0xff);
+        }
         this.inetResult = result;
     }
 
+    public ResourceRecord(String hostName, RecordType type, long ttl, int ipv4Result) {
+        this(new DNSNode(hostName, type), ttl, ipv4Result);
+    }
+
+    public ResourceRecord(String hostName, RecordType type, long ttl, long ipv6High, long ipv6Low) {
+        this(new DNSNode(hostName, type), ttl, ipv6High, ipv6Low);
+    }
+
+    public ResourceRecord(String hostName, RecordType type, long ttl, RecordData result) {
+        this(new DNSNode(hostName, type), ttl, result);
+    }
+
+    public ResourceRecord(DNSNode node, long ttl, int ipv4Result) {
+        this(node, ttl);
+        this.addressLength = 4;
+        this.addressHigh = ipv4Result & 0xffffffffL;
+    }
+
+    public ResourceRecord(DNSNode node, long ttl, long ipv6High, long ipv6Low) {
+        this(node, ttl);
+        this.addressLength = 16;
+        this.addressHigh = ipv6High;
+        this.addressLow = ipv6Low;
+    }
+
+    public ResourceRecord(DNSNode node, long ttl, RecordData result) {
+        this(node, ttl);
+        this.recordData = result;
+    }
+
+    private ResourceRecord(DNSNode node, long ttl) {
+        this.node = node;
+        this.expirationTime = System.nanoTime() + ttl * NANOS_PER_SECOND;
+    }
+
     public DNSNode getNode() {
         return node;
     }
@@ -48,7 +98,7 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - System.nanoTime() + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +108,34 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime - System.nanoTime() > 0;
+    }
+
+    /** Returns true if this record expired more than a given time ago. With a time of zero, this
+     * is the opposite of isStillValid().
+     *
+     * @param nanos Time since expiration, in nanoseconds.
+     * @return true if this record expired more than the given time ago, or false otherwise.
+     */
+    public boolean expiredLongerThan(long nanos) {
+        return System.nanoTime() - expirationTime >= nanos;
+    }
+
+    /** Returns a copy of this record with a different TTL. This may be used, for example, to
+     * return a record that has already expired with a short TTL when it is served stale.
+     *
+     * @param ttl TTL of the new record, in seconds.
+     * @return A new record with the same name, type and result, expiring after ttl seconds.
+     */
+    public ResourceRecord withTTL(long ttl) {
+        ResourceRecord copy = new ResourceRecord(node, ttl);
+        copy.addressLength = addressLength;
+        copy.addressHigh = addressHigh;
+        copy.addressLow = addressLow;
+        copy.textResult = textResult;
+        copy.inetResult = inetResult;
+        copy.recordData = recordData;
+        return copy;
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,14 +147,52 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime - record.expirationTime < 0;
+    }
+
+    /** Returns true if the result of this record is an IP address (e.g., A or AAAA records),
+     * and false if it is a textual result.
+     *
+     * @return true if this record holds an IP address, or false otherwise.
+     */
+    public boolean isAddress() {
+        return addressLength != 0;
     }
 
     public String getTextResult() {
+        if (textResult == null)
+            textResult = isAddress() ? getInetResult().getHostAddress()
+                    : recordData != null ? recordData.toString() : "";
         return textResult;
     }
 
+    /** Returns the RDATA of this record, from which typed fields (e.g., the preference and
+     * exchange of an MX record) can be decoded. Records created from an IP address have no
+     * RDATA.
+     *
+     * @return The RDATA of this record, or null if not available.
+     */
+    public RecordData getRecordData() {
+        return recordData;
+    }
+
     public InetAddress getInetResult() {
+        if (inetResult == null && isAddress()) {
+            byte[] address = new byte[addressLength];
+            for (int i = 0; i < addressLength; i++) {
+                long half = i < 8 ? addressHigh : addressLow;
+                int shift = 8 * (Math.min(addressLength, 8) - 1 - (i % 8));
+                address[i] = (byte) (half >>> shift);
+            }
+            try {
+                // IPv4-mapped IPv6 addresses are kept as IPv6, as returned by the server
+                inetResult = addressLength == 4 ? InetAddress.getByAddress(address)
+                        : Inet6Address.getByAddress(null, address, -1);
+            } catch (UnknownHostException e) {
+                // Not reachable, the address length is always 4 or 16
+                throw new IllegalStateException(e);
+            }
+        }
         return inetResult;
     }
 
@@ -89,14 +204,19 @@ public class ResourceRecord implements Serializable {
         ResourceRecord record = (ResourceRecord) o;
 
         if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
+        if (addressLength != record.addressLength) return false;
+        if (isAddress())
+            return addressHigh == record.addressHigh && addressLow == record.addressLow;
+        return Objects.equals(recordData, record.recordData);
     }
 
     @Override
     public int hashCode() {
         int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
+        if (isAddress())
+            result = 31 * result + Long.hashCode(addressHigh ^ (addressLow * 31));
+        else
+            result = 31 * result + Objects.hashCode(recordData);
         return result;
     }
 }
@@ -0,0 +1,187 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** A block of IP addresses, specified in CIDR notation (e.g., 192.0.2.0/24 or 2001:db8::/120),
+ * for which reverse DNS names can be generated. IPv4 addresses are mapped to names in the
+ * in-addr.arpa domain, and IPv6 addresses to nibble-format names in the ip6.arpa domain.
+ */
+public class ReverseRange {
+
+    /** Largest number of host bits in a range, i.e., the address length (32 or 128) minus the
+     * prefix length. Ranges thus have at most 2^MAX_HOST_BITS addresses (a /8 in IPv4, or a
+     * /104 in IPv6). */
+    public static final int MAX_HOST_BITS = 24;
+
+    private final boolean ipv6;
+    private final int prefixLength;
+    private final long high;
+    private final long low;
+
+    private ReverseRange(boolean ipv6, int prefixLength, long high, long low) {
+        this.ipv6 = ipv6;
+        this.prefixLength = prefixLength;
+        this.high = high;
+        this.low = low;
+    }
+
+    /** Parses a range in CIDR notation. Host bits set in the address are ignored. An address
+     * without a prefix length corresponds to a range with that single address.
+     *
+     * @param cidr The range, in the format address/prefixLength.
+     * @return The corresponding range.
+     * @throws IllegalArgumentException if the range is invalid or contains more than
+     *                                  2^MAX_HOST_BITS addresses.
+     */
+    public static ReverseRange parse(String cidr) {
+        String[] parts = cidr.split("/", 2);
+        // The address is parsed here rather than by InetAddress, which resolves anything that is
+        // not a literal address as a host name
+        byte[] bytes = parts[0].indexOf(':') < 0 ? parseIPv4(parts[0]) : parseIPv6(parts[0]);
+        boolean ipv6 = bytes.length == 16;
+        int bits = bytes.length * 8;
+        int prefixLength;
+        try {
+            prefixLength = parts.length > 1 ? Integer.parseInt(parts[1]) : bits;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid prefix length: " + parts[1]);
+        }
+        if (prefixLength < 0 || prefixLength > bits)
+            throw new IllegalArgumentException("Invalid prefix length: " + prefixLength);
+        if (bits - prefixLength > MAX_HOST_BITS)
+            throw new IllegalArgumentException("Range too large, prefix must be at least /" + (bits - MAX_HOST_BITS));
+
+        long high = 0, low = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (i < 8)
+                high = (high << 8) | (bytes[i] & 0xff);
+            else
+                low = (low << 8) | (bytes[i] & 0xff);
+        }
+        // IPv4 addresses are entirely in the high part, while IPv6 ranges never span more
+        // than the low 24 bits, so only one part needs to be masked
+        long hostMask = (1L << (bits - prefixLength)) - 1;
+        if (ipv6)
+            low &= ~hostMask;
+        else
+            high &= ~hostMask;
+        return new ReverseRange(ipv6, prefixLength, high, low);
+    }
+
+    /** Parses an IPv4 address in dotted-decimal notation, with exactly four parts. Shorter
+     * legacy forms (e.g., 127.1) are not accepted.
+     *
+     * @param text The address.
+     * @return The four bytes of the address.
+     * @throws IllegalArgumentException if the address is not in dotted-decimal notation.
+     */
+    private static byte[] parseIPv4(String text) {
+        String[] parts = text.split("\\.", -1);
+        if (parts.length != 4)
+            throw new IllegalArgumentException("Invalid address: " + text);
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++)
+            bytes[i] = (byte) parseNumber(parts[i], 10, 3, 255, text);
+        return bytes;
+    }
+
+    /** Parses an IPv6 address in the text format of RFC 4291, i.e., eight groups of up to four
+     * hex digits, where one run of groups may be replaced by "::" and the last two groups may be
+     * written as an IPv4 address.
+     *
+     * @param text The address.
+     * @return The sixteen bytes of the address.
+     * @throws IllegalArgumentException if the address is not in a valid IPv6 format.
+     */
+    private static byte[] parseIPv6(String text) {
+        int gap = text.indexOf("::");
+        if (gap >= 0 && text.indexOf("::", gap + 1) >= 0)
+            throw new IllegalArgumentException("Invalid address: " + text);
+        String head = gap < 0 ? text : text.substring(0, gap);
+        String tail = gap < 0 ? "" : text.substring(gap + 2);
+
+        int[] headGroups = parseGroups(head, gap < 0, text);
+        int[] tailGroups = parseGroups(tail, true, text);
+        int count = headGroups.length + tailGroups.length;
+        if (gap < 0 ? count != 8 : count > 7)
+            throw new IllegalArgumentException("Invalid address: " + text);
+
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < headGroups.length; i++) {
+            bytes[2 * i] = (byte) (headGroups[i] >> 8);
+            bytes[2 * i + 1] = (byte) headGroups[i];
+        }
+        for (int i = 0, j = 8 - tailGroups.length; i < tailGroups.length; i++, j++) {
+            bytes[2 * j] = (byte) (tailGroups[i] >> 8);
+            bytes[2 * j + 1] = (byte) tailGroups[i];
+        }
+        return bytes;
+    }
+
+    private static int[] parseGroups(String part, boolean last, String text) {
+        if (part.isEmpty())
+            return new int[0];
+        String[] groups = part.split(":", -1);
+        boolean embeddedIPv4 = last && groups[groups.length - 1].indexOf('.') >= 0;
+        int[] values = new int[embeddedIPv4 ? groups.length + 1 : groups.length];
+        for (int i = 0; i < groups.length; i++) {
+            if (embeddedIPv4 && i == groups.length - 1) {
+                byte[] ipv4 = parseIPv4(groups[i]);
+                values[i] = (ipv4[0] & 0xff) << 8 | (ipv4[1] & 0xff);
+                values[i + 1] = (ipv4[2] & 0xff) << 8 | (ipv4[3] & 0xff);
+            } else {
+                values[i] = parseNumber(groups[i], 16, 4, 0xffff, text);
+            }
+        }
+        return values;
+    }
+
+    /** Parses a number made of ASCII digits only, unlike Integer.parseInt, which also accepts
+     * signs and digits from other scripts.
+     */
+    private static int parseNumber(String digits, int radix, int maxDigits, int max, String text) {
+        if (digits.isEmpty() || digits.length() > maxDigits)
+            throw new IllegalArgumentException("Invalid address: " + text);
+        int value = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            char c = digits.charAt(i);
+            int digit = c >= '0' && c <= '9' ? c - '0'
+                    : radix == 16 && c >= 'a' && c <= 'f' ? c - 'a' + 10
+                    : radix == 16 && c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+            if (digit < 0)
+                throw new IllegalArgumentException("Invalid address: " + text);
+            value = value * radix + digit;
+        }
+        if (value > max)
+            throw new IllegalArgumentException("Invalid address: " + text);
+        return value;
+    }
+
+    /** @return The number of addresses in this range. */
+    public int size() {
+        return 1 << ((ipv6 ? 128 : 32) - prefixLength);
+    }
+
+    /** Returns the reverse DNS name of an address in this range, i.e., the name that should be
+     * queried for a PTR record of that address.
+     *
+     * @param index Position of the address in the range, from 0 (zero) to size() - 1.
+     * @return The in-addr.arpa or ip6.arpa name of the address.
+     */
+    public String getName(int index) {
+        StringBuilder name = new StringBuilder(ipv6 ? 72 : 29);
+        if (ipv6) {
+            long address = low + index;
+            for (int i = 0; i < 16; i++, address >>>= 4)
+                name.append(Character.forDigit((int) (address & 0xf), 16)).append('.');
+            address = high;
+            for (int i = 0; i < 16; i++, address >>>= 4)
+                name.append(Character.forDigit((int) (address & 0xf), 16)).append('.');
+            name.append("ip6.arpa");
+        } else {
+            long address = high + index;
+            for (int i = 0; i < 4; i++, address >>>= 8)
+                name.append(address & 0xff).append('.');
+            name.append("in-addr.arpa");
+        }
+        return name.toString();
+    }
+}
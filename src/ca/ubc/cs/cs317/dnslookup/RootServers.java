@@ -0,0 +1,119 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** This class keeps the set of root name servers known to the application, and ranks them by
+ * their response time. It starts with a built-in table of root hints, which may be extended
+ * with the root servers obtained from a priming query. Response times are kept as a smoothed
+ * average of the times measured for each query, and timeouts count as very slow responses.
+ */
+public class RootServers {
+
+    /** Root hints (names and IPv4 addresses of the root servers), as published by IANA. */
+    private static final String[][] ROOT_HINTS = {
+            {"a.root-servers.net", "198.41.0.4"},
+            {"b.root-servers.net", "170.247.170.2"},
+            {"c.root-servers.net", "192.33.4.12"},
+            {"d.root-servers.net", "199.7.91.13"},
+            {"e.root-servers.net", "192.203.230.10"},
+            {"f.root-servers.net", "192.5.5.241"},
+            {"g.root-servers.net", "192.112.36.4"},
+            {"h.root-servers.net", "198.97.190.53"},
+            {"i.root-servers.net", "192.36.148.17"},
+            {"j.root-servers.net", "192.58.128.30"},
+            {"k.root-servers.net", "193.0.14.129"},
+            {"l.root-servers.net", "199.7.83.42"},
+            {"m.root-servers.net", "202.12.27.33"},
+    };
+
+    /** Number of fastest servers among which queries are spread. */
+    private static final int PREFERRED_SERVERS = 3;
+    /** Response time assumed for servers that have not been measured yet. */
+    private static final long UNMEASURED_RTT = 500_000_000L;
+    /** Response time used as a sample when a server does not respond. */
+    private static final long TIMEOUT_RTT = 5_000_000_000L;
+
+    private final ConcurrentMap<InetAddress, Long> smoothedRtt = new ConcurrentHashMap<>();
+    private final Random random = new Random();
+
+    /** Creates a set of root servers containing only the built-in root hints.
+     *
+     * @return A new set of root servers.
+     */
+    public static RootServers fromHints() {
+        RootServers servers = new RootServers();
+        for (String[] hint : ROOT_HINTS) {
+            try {
+                servers.addServer(InetAddress.getByName(hint[1]));
+            } catch (UnknownHostException e) {
+                // Not reachable, the hints are literal addresses
+                throw new IllegalStateException(e);
+            }
+        }
+        return servers;
+    }
+
+    /** Adds a root server to the set. Servers already in the set keep their response time.
+     *
+     * @param server Address of the root server.
+     */
+    public void addServer(InetAddress server) {
+        smoothedRtt.putIfAbsent(server, UNMEASURED_RTT);
+    }
+
+    public Set<InetAddress> getServers() {
+        return Collections.unmodifiableSet(smoothedRtt.keySet());
+    }
+
+    /** Records the time taken by a root server to respond. Addresses that are not root servers
+     * are ignored.
+     *
+     * @param server Address of the server that responded.
+     * @param nanos  Time between sending the query and receiving the response, in nanoseconds.
+     */
+    public void recordResponse(InetAddress server, long nanos) {
+        smoothedRtt.computeIfPresent(server, (key, rtt) -> rtt == UNMEASURED_RTT ? nanos : (7 * rtt + 3 * nanos) / 10);
+    }
+
+    /** Records that a root server did not respond to a query. Addresses that are not root
+     * servers are ignored.
+     *
+     * @param server Address of the server that did not respond.
+     */
+    public void recordTimeout(InetAddress server) {
+        recordResponse(server, TIMEOUT_RTT);
+    }
+
+    /** Returns the smoothed response time of a root server. Servers that have not been measured
+     * yet are ranked as if they took UNMEASURED_RTT, but that time is not returned here.
+     *
+     * @param server Address of the server.
+     * @return The response time, in nanoseconds, or -1 if the server has not been measured yet
+     * or the address is not a known root server.
+     */
+    public long getRtt(InetAddress server) {
+        Long rtt = smoothedRtt.get(server);
+        return rtt == null || rtt == UNMEASURED_RTT ? -1 : rtt;
+    }
+
+    /** Returns all root servers in the order in which they should be queried. The fastest
+     * PREFERRED_SERVERS servers come first, in random order so that queries are spread among
+     * them, followed by the remaining servers from fastest to slowest.
+     *
+     * @return List of root server addresses.
+     */
+    public List<InetAddress> getRankedServers() {
+        // Times are copied first, since they may be updated while the list is sorted
+        Map<InetAddress, Long> rtts = new HashMap<>(smoothedRtt);
+        List<InetAddress> ranked = new ArrayList<>(rtts.keySet());
+        // Shuffling before the (stable) sort orders servers with the same time randomly
+        Collections.shuffle(ranked, random);
+        ranked.sort(Comparator.comparingLong(rtts::get));
+        Collections.shuffle(ranked.subList(0, Math.min(PREFERRED_SERVERS, ranked.size())), random);
+        return ranked;
+    }
+}
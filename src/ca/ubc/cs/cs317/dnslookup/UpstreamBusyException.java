@@ -0,0 +1,15 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+
+/** Thrown when a query cannot be sent to an upstream server because the server's rate or
+ * in-flight limit was reached and did not clear within the maximum waiting time.
+ */
+public class UpstreamBusyException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UpstreamBusyException(InetAddress server) {
+        super("Upstream server " + server.getHostAddress() + " is busy");
+    }
+}
@@ -0,0 +1,175 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** This class limits the queries sent to each upstream server. Every server address has its own
+ * token bucket, which limits the rate of queries sent to it, and a cap on the number of queries
+ * waiting for a response from it. A query that cannot be sent immediately waits for the server
+ * to be available for up to a maximum time, after which it is rejected, so the caller can try
+ * another server or report that upstream servers are busy. Limits on one server do not affect
+ * queries sent to other servers.
+ *
+ * The state of servers that are idle, i.e., with no queries in flight and a full bucket, is the
+ * same as that of a server never queried, so it can be discarded with removeIdle.
+ */
+public class UpstreamLimiter {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private volatile double queriesPerSecond;
+    private volatile int burst;
+    private volatile int maxInFlight;
+    private volatile long maxWaitNanos;
+
+    private final ConcurrentMap<InetAddress, Upstream> upstreams = new ConcurrentHashMap<>();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /** State of a single upstream server. All fields are protected by the object's lock. */
+    private static class Upstream {
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private int inFlight;
+        /** Set when the state is removed from the map, after which it must no longer be used. */
+        private boolean removed;
+
+        private void refill(long now, double queriesPerSecond, int burst) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * queriesPerSecond / NANOS_PER_SECOND);
+            lastRefill = now;
+        }
+    }
+
+    /**
+     * @param queriesPerSecond Sustained rate of queries allowed for each server.
+     * @param burst            Number of queries that may be sent to an idle server at once.
+     * @param maxInFlight      Maximum number of queries waiting for a response from each server.
+     * @param maxWaitMillis    Maximum time a query waits for a server to be available.
+     */
+    public UpstreamLimiter(double queriesPerSecond, int burst, int maxInFlight, long maxWaitMillis) {
+        setLimits(queriesPerSecond, burst, maxInFlight);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /** Changes the limits applied to every server.
+     *
+     * @param queriesPerSecond Sustained rate of queries allowed for each server.
+     * @param burst            Number of queries that may be sent to an idle server at once.
+     * @param maxInFlight      Maximum number of queries waiting for a response from each server.
+     */
+    public void setLimits(double queriesPerSecond, int burst, int maxInFlight) {
+        if (!(queriesPerSecond > 0) || Double.isInfinite(queriesPerSecond) || burst < 1 || maxInFlight < 1)
+            throw new IllegalArgumentException("Limits must be positive and finite");
+        this.queriesPerSecond = queriesPerSecond;
+        this.burst = burst;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public double getQueriesPerSecond() {
+        return queriesPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /** Obtains permission to send a query to a server, waiting if the server's rate or
+     * in-flight limit has been reached. Every successful call must be followed by a call to
+     * release once a response is received or the query times out.
+     *
+     * @param server Address of the server the query will be sent to.
+     * @return true if the query may be sent, or false if the server was not available within
+     * the maximum waiting time.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public boolean acquire(InetAddress server) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWaitNanos;
+        boolean waited = false;
+        while (true) {
+            Upstream upstream = upstreams.computeIfAbsent(server, key -> {
+                Upstream created = new Upstream();
+                created.tokens = burst;
+                return created;
+            });
+
+            synchronized (upstream) {
+                while (!upstream.removed) {
+                    long now = System.nanoTime();
+                    upstream.refill(now, queriesPerSecond, burst);
+
+                    if (upstream.inFlight < maxInFlight && upstream.tokens >= 1) {
+                        upstream.tokens--;
+                        upstream.inFlight++;
+                        if (waited) delayed.incrementAndGet();
+                        return true;
+                    }
+
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        rejected.incrementAndGet();
+                        return false;
+                    }
+                    // Without a free slot, wait to be notified by release; otherwise until a token is available
+                    long untilToken = upstream.inFlight < maxInFlight ?
+                            (long) ((1 - upstream.tokens) * NANOS_PER_SECOND / queriesPerSecond) + 1 : remaining;
+                    TimeUnit.NANOSECONDS.timedWait(upstream, Math.min(remaining, untilToken));
+                    waited = true;
+                }
+            }
+            // The state was found idle and removed while waiting; the server starts over with a new one
+        }
+    }
+
+    /** Signals that a query sent to a server has been answered or has timed out.
+     *
+     * @param server Address of the server the query was sent to.
+     */
+    public void release(InetAddress server) {
+        Upstream upstream = upstreams.get(server);
+        if (upstream == null) return;
+        synchronized (upstream) {
+            upstream.inFlight--;
+            upstream.notifyAll();
+        }
+    }
+
+    /** Discards the state of every server that is idle, i.e., that has no queries in flight and
+     * whose bucket is full again. Servers that are queried again start with a new state, which
+     * is identical, so this does not change the limits applied, only the memory used.
+     */
+    public void removeIdle() {
+        for (Map.Entry<InetAddress, Upstream> entry : upstreams.entrySet()) {
+            Upstream upstream = entry.getValue();
+            synchronized (upstream) {
+                upstream.refill(System.nanoTime(), queriesPerSecond, burst);
+                if (upstream.inFlight == 0 && upstream.tokens >= burst) {
+                    upstream.removed = true;
+                    upstreams.remove(entry.getKey(), upstream);
+                }
+            }
+        }
+    }
+
+    /** @return The number of servers for which a state is kept. */
+    public int getServerCount() {
+        return upstreams.size();
+    }
+
+    /** @return The number of queries that had to wait for a server to be available. */
+    public long getDelayedCount() {
+        return delayed.get();
+    }
+
+    /** @return The number of queries rejected because a server was not available in time. */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+}